@@ -0,0 +1,108 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodeWriterBenchmark {
+    /*
+     * one benchmark operation writes one vm command, so ops/s is commands/s
+     * and gc.alloc.rate.norm is bytes allocated per command
+     */
+    private CodeWriter cw;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException, InvalidCommandException {
+        this.cw = new CodeWriter(Writer.nullWriter());
+        this.cw.setVmFilename("Main");
+        this.cw.writeFunction("Main.main", 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        this.cw.close();
+    }
+
+    @Benchmark
+    public void pushLocal() throws IOException, InvalidCommandException {
+        this.cw.writePush(Segment.LOCAL, 3);
+    }
+
+    @Benchmark
+    public void pushConstant() throws IOException, InvalidCommandException {
+        this.cw.writePush(Segment.CONSTANT, 17);
+    }
+
+    @Benchmark
+    public void pushStatic() throws IOException, InvalidCommandException {
+        this.cw.writePush(Segment.STATIC, 4);
+    }
+
+    @Benchmark
+    public void pushTemp() throws IOException, InvalidCommandException {
+        this.cw.writePush(Segment.TEMP, 2);
+    }
+
+    @Benchmark
+    public void pushPointer() throws IOException, InvalidCommandException {
+        this.cw.writePush(Segment.POINTER, 1);
+    }
+
+    @Benchmark
+    public void popThat() throws IOException, InvalidCommandException {
+        this.cw.writePop(Segment.THAT, 5);
+    }
+
+    @Benchmark
+    public void add() throws IOException, InvalidCommandException {
+        this.cw.writeArithmetic(Operator.ADD);
+    }
+
+    @Benchmark
+    public void lt() throws IOException, InvalidCommandException {
+        this.cw.writeArithmetic(Operator.LT);
+    }
+
+    @Benchmark
+    public void label() {
+        this.cw.writeLabel("LOOP");
+    }
+
+    @Benchmark
+    public void gotoLabel() {
+        this.cw.writeGoto("LOOP");
+    }
+
+    @Benchmark
+    public void ifGoto() {
+        this.cw.writeIf("LOOP");
+    }
+
+    @Benchmark
+    public void function() throws IOException, InvalidCommandException {
+        this.cw.writeFunction("Main.main", 2);
+    }
+
+    @Benchmark
+    public void call() {
+        this.cw.writeCall("Main.helper", 2);
+    }
+
+    @Benchmark
+    public void returnCommand() {
+        this.cw.writeReturn();
+    }
+}
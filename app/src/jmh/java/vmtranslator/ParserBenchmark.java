@@ -0,0 +1,72 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+    /*
+     * parses a generated file with advance/commandType/arg1/arg2
+     * commands/s is reported by the Commands counter
+     * bytes per command = gc.alloc.rate.norm / commands
+     */
+    @Param({ "10000", "100000", "1000000" })
+    public int commands;
+
+    @Param({ "false", "true" })
+    public boolean memoryMapped;
+
+    private Path corpus;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Commands {
+        public long commands;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.corpus = VmCorpus.create(this.commands);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.corpus);
+    }
+
+    @Benchmark
+    public void parse(Commands counter, Blackhole bh) throws IOException, InvalidCommandException {
+        Parser parser = new Parser(this.corpus.toFile(), this.memoryMapped);
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            CommandType cmt = parser.commandType();
+            bh.consume(cmt);
+            if (cmt != CommandType.C_RETURN && cmt != CommandType.C_EMPTY) {
+                bh.consume(parser.arg1());
+            }
+            if (cmt == CommandType.C_PUSH || cmt == CommandType.C_POP
+                    || cmt == CommandType.C_FUNCTION || cmt == CommandType.C_CALL) {
+                bh.consume(parser.arg2());
+            }
+            counter.commands++;
+        }
+        parser.close();
+    }
+}
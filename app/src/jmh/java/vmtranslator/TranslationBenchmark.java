@@ -0,0 +1,64 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TranslationBenchmark {
+    /*
+     * runs Main on a generated vm file, from reading the input to writing the asm file
+     * commands/s is reported by the Commands counter
+     * bytes per command = gc.alloc.rate.norm / commands
+     */
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int commands;
+
+    @Param({ "", "--mmap" })
+    public String flags;
+
+    private Path corpus;
+    private String[] args;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Commands {
+        public long commands;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.corpus = VmCorpus.create(this.commands);
+        this.args = this.flags.isEmpty()
+                ? new String[] { this.corpus.toString() }
+                : new String[] { this.flags, this.corpus.toString() };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.corpus);
+        String path = this.corpus.toString();
+        Files.deleteIfExists(Path.of(path.substring(0, path.length() - 3) + ".asm"));
+    }
+
+    @Benchmark
+    public void translate(Commands counter) throws IOException, InvalidCommandException {
+        Main.main(this.args);
+        counter.commands += this.commands;
+    }
+}
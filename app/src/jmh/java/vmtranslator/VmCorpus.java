@@ -0,0 +1,58 @@
+package vmtranslator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class VmCorpus {
+    /*
+     * generates vm programs of a given size with a mix of commands
+     * similar to the output of the Jack compiler
+     */
+    private static final String[] BODY = {
+            "push argument 0",
+            "push local 1",
+            "push constant 17",
+            "add",
+            "pop local 0",
+            "push this 2",
+            "push constant 3",
+            "lt",
+            "if-goto LOOP_END",
+            "push static 4",
+            "push that 0",
+            "sub",
+            "pop temp 1",
+            "push pointer 1",
+            "not",
+            "call Main.helper 2",
+            "pop static 4",
+            "label LOOP_END",
+            "goto LOOP_START",
+            "return" };
+
+    static void write(Path file, int commands) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            int written = 0;
+            int function = 0;
+            while (written < commands) {
+                writer.write("function Main.f" + function++ + " 2");
+                writer.newLine();
+                writer.write("label LOOP_START");
+                writer.newLine();
+                written += 2;
+                for (int i = 0; i < BODY.length && written < commands; i++, written++) {
+                    writer.write(BODY[i]);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    static Path create(int commands) throws IOException {
+        Path file = Files.createTempFile("corpus", ".vm");
+        write(file, commands);
+        return file;
+    }
+}
@@ -0,0 +1,143 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+
+class AsmBuffer {
+    /*
+     * reusable char buffer the assembly is appended to piece by piece
+     * numbers are written as digits in place, so emitting a command
+     * does not allocate any intermediate strings
+     */
+    private static final int FLUSH_THRESHOLD = 8192;
+    private Writer out;
+    private char[] chars = new char[2 * FLUSH_THRESHOLD];
+    private int length;
+    // chars written out before the ones in the buffer
+    private long flushed;
+
+    AsmBuffer(Writer out) {
+        this.out = out;
+    }
+
+    AsmBuffer reset(Writer out) {
+        // reuses the allocated chars for another output
+        this.out = out;
+        this.length = 0;
+        this.flushed = 0;
+        return this;
+    }
+
+    AsmBuffer append(String s) {
+        int n = s.length();
+        this.ensureCapacity(n);
+        s.getChars(0, n, this.chars, this.length);
+        this.length += n;
+        return this;
+    }
+
+    AsmBuffer append(char c) {
+        this.ensureCapacity(1);
+        this.chars[this.length++] = c;
+        return this;
+    }
+
+    AsmBuffer append(int value) {
+        if (value < 0) {
+            this.append('-');
+            if (value == Integer.MIN_VALUE) {
+                return this.append("2147483648");
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        this.ensureCapacity(digits);
+        for (int i = this.length + digits - 1; i >= this.length; i--) {
+            this.chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        this.length += digits;
+        return this;
+    }
+
+    AsmBuffer line(String s) {
+        return this.append(s).append('\n');
+    }
+
+    AsmBuffer line(int value) {
+        return this.append(value).append('\n');
+    }
+
+    int length() {
+        return this.length;
+    }
+
+    long written() {
+        // chars appended since the buffer was created or reset
+        return this.flushed + this.length;
+    }
+
+    int instructionsSince(int from) {
+        // lines appended since position from that are neither comments nor labels
+        int count = 0;
+        boolean lineStart = true;
+        for (int i = from; i < this.length; i++) {
+            char c = this.chars[i];
+            if (c == '\n') {
+                lineStart = true;
+            } else if (lineStart && c != ' ') {
+                lineStart = false;
+                if (c != '/' && c != '(') {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    void copyTo(Writer sink, int from) throws IOException {
+        // copies what was appended since position from
+        sink.write(this.chars, from, this.length - from);
+    }
+
+    void flushIfFull() throws IOException {
+        // only called between commands, so a command is never split across writes
+        if (this.length >= FLUSH_THRESHOLD) {
+            this.flush();
+        }
+    }
+
+    void flush() throws IOException {
+        this.out.write(this.chars, 0, this.length);
+        this.flushed += this.length;
+        this.length = 0;
+    }
+
+    void drain() throws IOException {
+        // writes out the buffer and flushes the writer below it
+        this.flush();
+        this.out.flush();
+    }
+
+    void writeThrough(String text) throws IOException {
+        this.flush();
+        this.out.write(text);
+        this.flushed += text.length();
+    }
+
+    void close() throws IOException {
+        this.flush();
+        this.out.close();
+    }
+
+    private void ensureCapacity(int extra) {
+        if (this.length + extra > this.chars.length) {
+            char[] grown = new char[Math.max(2 * this.chars.length, this.length + extra)];
+            System.arraycopy(this.chars, 0, grown, 0, this.length);
+            this.chars = grown;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+class AsyncWriter extends Writer {
+    /*
+     * hands the blocks written to it to an I/O thread that writes them to out,
+     * so code generation goes on while a block is on its way to disk
+     * CodeWriter writes its buffer in blocks of several KB, so the queue is short
+     * an error of the I/O thread is thrown by the next write or by close
+     */
+    private static final int QUEUED_BLOCKS = 8;
+    private static final char[] FLUSH = new char[0];
+    private static final char[] END = new char[0];
+    private final Writer out;
+    private final BlockingQueue<char[]> blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+    private final Thread thread;
+    private volatile IOException failure;
+    private boolean closed;
+
+    AsyncWriter(Writer out) {
+        this.out = out;
+        this.thread = new Thread(this::drain, "vm-output");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) throws IOException {
+        if (count > 0) {
+            this.enqueue(Arrays.copyOfRange(chars, offset, offset + count));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.enqueue(FLUSH);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.blocks.put(END);
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    private void enqueue(char[] block) throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (this.closed) {
+            throw new IOException("Writer closed");
+        }
+        try {
+            this.blocks.put(block);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+    }
+
+    private void drain() {
+        // runs on the I/O thread; keeps taking blocks after a failure, so writers never wait forever
+        try {
+            while (true) {
+                char[] block = this.blocks.take();
+                if (block == END) {
+                    break;
+                }
+                if (this.failure != null) {
+                    continue;
+                }
+                try {
+                    if (block == FLUSH) {
+                        this.out.flush();
+                    } else {
+                        this.out.write(block);
+                    }
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            this.out.close();
+        } catch (IOException e) {
+            if (this.failure == null) {
+                this.failure = e;
+            }
+        } catch (InterruptedException e) {
+            this.failure = new IOException("Interrupted while writing output", e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package vmtranslator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class Batch {
+    /*
+     * --batch: translates many programs in one run, so the jvm starts and warms up once
+     * the manifest lists one vm file or directory per line, empty lines and lines
+     * starting with // are skipped
+     * programs are translated concurrently, every worker thread reusing its output buffer,
+     * and a program that fails is reported without stopping the others
+     */
+    private final Translator translator;
+    private final String outputExtension;
+
+    Batch(Translator translator, Options options) {
+        this.translator = translator;
+        this.outputExtension = options.outputExtension();
+    }
+
+    int run(BufferedReader manifest) throws IOException {
+        // returns the number of programs that failed
+        List<String> paths = new ArrayList<>();
+        String line;
+        while ((line = manifest.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("//")) {
+                paths.add(line);
+            }
+        }
+        if (paths.isEmpty()) {
+            System.out.println("No paths to translate");
+            return 0;
+        }
+
+        int threads = Math.min(paths.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<Job>> jobs = new ArrayList<>();
+            for (String path : paths) {
+                jobs.add(pool.submit(() -> this.translate(path)));
+            }
+            // reported in manifest order
+            int failed = 0;
+            for (Future<Job> future : jobs) {
+                Job job = future.get();
+                if (job.error() == null) {
+                    System.out.println("ok    " + millis(job.nanos()) + " ms  " + job.path());
+                } else {
+                    failed++;
+                    System.out.println("FAIL  " + millis(job.nanos()) + " ms  " + job.path() + ": " + job.error());
+                }
+            }
+            System.out.println(paths.size() + " programs, " + failed + " failed, "
+                    + millis(System.nanoTime() - start) + " ms");
+            return failed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Batch failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Job translate(String path) {
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            File source = new File(path);
+            if (!source.exists()) {
+                error = "path does not exist";
+            } else if (source.isFile() && Translator.isAllowedFile(source)) {
+                String outputFilename = path.substring(0, path.length() - 3) + this.outputExtension;
+                if (!this.translator.translateFile(source, outputFilename)) {
+                    error = "translation stopped at an error";
+                }
+            } else if (source.isDirectory()) {
+                if (!this.translator.translateDirectory(source, path + this.outputExtension)) {
+                    error = "translation stopped at an error";
+                }
+            } else {
+                error = "not a vm file or directory";
+            }
+        } catch (Exception e) {
+            error = e.toString();
+        }
+        return new Job(path, System.nanoTime() - start, error);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    record Job(String path, long nanos, String error) {
+        // error is null if the program was translated completely
+    }
+}
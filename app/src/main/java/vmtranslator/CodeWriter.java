@@ -1,149 +1,336 @@
 package vmtranslator;
 
-import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.Writer;
 
 public class CodeWriter {
     /*
      * writes the assembly code that implements the parsed command
      */
-    private String asmFilename;
-    private BufferedWriter bw;
+    private AsmBuffer asm;
+    // start of the command being written, for tracing
+    private int commandStart;
     private String vmfilename;
     private int callCount;
+    // numbers the labels of each comparison in the current function
+    private int compareCount;
     private String currFunction;
-
-    private HashMap<String, String> segmentSymbol = new HashMap<>();
+    // false until the first function of the current vm file is written; commands
+    // written before that are scoped by the previous file's function
+    private boolean scopeStarted;
+    private boolean usedPriorScope;
+    // calls and returns jump to one shared routine instead of being inlined
+    private boolean sharedCallReturn;
+    // eq, gt and lt jump to one shared routine per operator instead of being inlined
+    private boolean sharedCompare;
+    // tail calls may be written, so shared routines include one for them
+    private boolean tailCalls;
+    // the stack top is kept in D within a basic block instead of RAM[SP-1]
+    private boolean cacheTop;
+    // whether D holds the stack top now; SP does not count it then
+    private boolean topInD;
+    // every command starts with a marker comment naming it, for the profiler
+    private boolean profile;
+    static final String PROFILE_MARKER = "//@vm ";
+    // kind of the vm command being written, as named by its profile marker
+    private String kind = "";
+    // counts the instructions of each command kind while set
+    private Metrics.FileMetrics metrics;
+    private LogLevel logLevel = LogLevel.SILENT;
+    private Writer traceSink;
 
     CodeWriter(String filename) throws IOException {
-        this.asmFilename = filename;
-        this.bw = new BufferedWriter(new FileWriter(this.asmFilename));
-        this.segmentSymbol.put("local", "LCL");
-        this.segmentSymbol.put("argument", "ARG");
-        this.segmentSymbol.put("this", "THIS");
-        this.segmentSymbol.put("that", "THAT");
-        this.segmentSymbol.put("temp", "TEMP");
+        this(new FileWriter(filename));
+    }
+
+    CodeWriter(Writer out) {
+        this(new AsmBuffer(out));
+    }
+
+    CodeWriter(AsmBuffer asm) {
+        this.asm = asm;
         this.vmfilename = "";
         this.currFunction = "";
         this.callCount = 0;
+        this.compareCount = 0;
     }
 
     void close() throws IOException {
-        this.bw.close();
+        this.spillTop();
+        this.asm.close();
+        if (this.traceSink != null) {
+            this.traceSink.flush();
+        }
+    }
+
+    void flush() throws IOException {
+        // writes out all assembly translated so far
+        this.asm.drain();
+    }
+
+    void setLogLevel(LogLevel logLevel, Writer traceSink) {
+        // TRACE echoes emitted assembly to traceSink, which should be buffered
+        this.logLevel = logLevel;
+        this.traceSink = logLevel == LogLevel.TRACE ? traceSink : null;
+    }
+
+    void setSharedCallReturn(boolean sharedCallReturn) {
+        this.sharedCallReturn = sharedCallReturn;
+    }
+
+    void setSharedCompare(boolean sharedCompare) {
+        this.sharedCompare = sharedCompare;
+    }
+
+    void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    void setCacheTop(boolean cacheTop) {
+        this.cacheTop = cacheTop;
+    }
+
+    void spillTop() {
+        // writes a stack top kept in D to RAM, at the end of a vm file
+        if (this.topInD) {
+            this.begin();
+            this.end();
+        }
+    }
+
+    void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    void setMetrics(Metrics.FileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    long written() {
+        // chars of assembly written so far
+        return this.asm.written();
     }
 
     void setVmFilename(String filename) throws IOException {
         // informs that translation of new vm file has started
         this.vmfilename = filename;
+        this.scopeStarted = false;
+        this.usedPriorScope = false;
+    }
 
+    boolean usedPriorScope() {
+        // whether the output of the current vm file depends on the function
+        // scope left behind by the previously translated file
+        return this.usedPriorScope;
     }
 
-    void writeInit() {
-        this.vmfilename = "Sys";
-        this.currFunction = "BootstrapCode";
-        String assembly = """
-                // setup
-                @256
-                D=A
-                @SP
-                M=D
-                """;
-        this.write(assembly);
-        this.writeCall("Sys.init", 0);
+    record Scope(String function, int callCount, int compareCount) {
+        // function scope a vm file leaves behind for the next one
     }
 
-    void writeArithmetic(String command) throws IOException, InvalidCommandException {
-        // add
-        // sub
-        // neg
-        // eq
-        // gt
-        // lt
-        // and
-        // or
-        // not
-        switch (command) {
-            case "add":
-                this.writeAdd();
+    Scope scope() {
+        // null if no function was written for the current vm file
+        return this.scopeStarted ? new Scope(this.currFunction, this.callCount, this.compareCount) : null;
+    }
+
+    void continueScope(Scope scope) {
+        // carries the function scope of a file translated on its own,
+        // as if that file had been written by this writer
+        if (scope != null) {
+            this.currFunction = scope.function();
+            this.callCount = scope.callCount();
+            this.compareCount = scope.compareCount();
+        }
+    }
+
+    void append(String fragment) throws IOException {
+        // copies already translated assembly as is
+        this.asm.writeThrough(fragment);
+    }
+
+    void writeCommand(Command command) throws IOException, InvalidCommandException {
+        // writes the assembly for any parsed command
+        switch (command.type()) {
+            case CommandType.C_ARITHMETIC:
+                this.mark(command.arg1());
+                this.writeArithmetic(operator(command.arg1(), command.operator()));
                 break;
-            case "sub":
-                this.writeSub();
+            case CommandType.C_PUSH:
+                this.mark("push");
+                this.writePush(segment(command.segment()), command.arg2());
                 break;
-            case "neg":
-                this.writeNeg();
+            case CommandType.C_POP:
+                this.mark("pop");
+                this.writePop(segment(command.segment()), command.arg2());
                 break;
-            case "eq":
-                this.writeComparator(command);
+            case CommandType.C_LABEL:
+                this.writeLabel(command.arg1());
                 break;
-            case "lt":
-                this.writeComparator(command);
+            case CommandType.C_GOTO:
+                this.mark("goto");
+                this.writeGoto(command.arg1());
                 break;
-            case "gt":
-                this.writeComparator(command);
+            case CommandType.C_IF:
+                this.mark("if-goto");
+                this.writeIf(command.arg1());
                 break;
-            case "and":
-                this.writeAnd();
+            case CommandType.C_FUNCTION:
+                this.writeFunction(command.arg1(), command.arg2());
                 break;
-            case "or":
-                this.writeOr();
+            case CommandType.C_CALL:
+                this.writeCall(command.arg1(), command.arg2());
                 break;
-            case "not":
-                this.writeNot();
+            case CommandType.C_RETURN:
+                this.mark("return");
+                this.writeReturn();
                 break;
             default:
-                throw new InvalidCommandException("Command not supported for assembly conversion:" + command);
+                System.out.println("Command not supported. Skipping:" + command.type().toString());
         }
-
     }
 
-    private void writeAdd() {
-
-        String assembly = """
-                // add
-                @SP
-                M=M-1
-                A=M
-                D=M
+    void writeInit() {
+        this.vmfilename = "Sys";
+        this.currFunction = "BootstrapCode";
+        this.mark("init");
+        this.begin().append("""
+                // setup
+                @256
+                D=A
                 @SP
-                A=M-1
-                M=D+M
-                """;
-        this.write(assembly);
+                M=D
+                """);
+        this.end();
+        this.writeCall("Sys.init", 0);
     }
 
-    private void writeSub() {
+    void writeArithmetic(String command) throws IOException, InvalidCommandException {
+        this.writeArithmetic(operator(command, Operator.of(command)));
+    }
 
-        String assembly = """
-                // sub
-                @SP
-                M=M-1
-                A=M
-                D=M
-                @SP
-                A=M-1
-                M=M-D
-                """;
-        this.write(assembly);
+    void writeArithmetic(Operator operator) {
+        // comparisons jump, the others are one fixed template
+        if (this.cacheTop && !(operator.isComparison() && this.sharedCompare)) {
+            this.writeCachedArithmetic(operator);
+        } else if (operator.isComparison()) {
+            this.writeComparator(operator);
+        } else {
+            this.begin().append(ARITHMETIC[operator.ordinal()]);
+            this.end();
+        }
+    }
 
+    private static Operator operator(String command, Operator operator) throws InvalidCommandException {
+        // operator resolved from command, null if command is not one
+        if (operator == null) {
+            throw new InvalidCommandException("Command not supported for assembly conversion:" + command);
+        }
+        return operator;
     }
 
-    private void writeNeg() {
+    private static Segment segment(Segment segment) throws InvalidCommandException {
+        if (segment == null) {
+            throw new InvalidCommandException("Argument not supported to convert to assembly");
+        }
+        return segment;
+    }
 
-        String assembly = """
-                // neg
-                @SP
-                A=M-1
-                M=-M
-                """;
-        this.write(assembly);
+    private static final String ADD = """
+            // add
+            @SP
+            M=M-1
+            A=M
+            D=M
+            @SP
+            A=M-1
+            M=D+M
+            """;
+
+    private static final String SUB = """
+            // sub
+            @SP
+            M=M-1
+            A=M
+            D=M
+            @SP
+            A=M-1
+            M=M-D
+            """;
+
+    private static final String NEG = """
+            // neg
+            @SP
+            A=M-1
+            M=-M
+            """;
+
+    private static final String AND = """
+            // and
+            @SP
+            M=M-1
+            A=M
+            D=M
+            A=A-1
+            M=D&M
+            """;
+
+    private static final String OR = """
+            // or
+            @SP
+            M=M-1
+            A=M
+            D=M
+            A=A-1
+            M=D|M
+            """;
 
+    private static final String NOT = """
+            // not
+            @SP
+            A=M-1
+            M=!M
+            """;
+
+    // template of each operator but the comparisons, by ordinal
+    private static final String[] ARITHMETIC = new String[Operator.values().length];
+
+    static {
+        ARITHMETIC[Operator.ADD.ordinal()] = ADD;
+        ARITHMETIC[Operator.SUB.ordinal()] = SUB;
+        ARITHMETIC[Operator.NEG.ordinal()] = NEG;
+        ARITHMETIC[Operator.AND.ordinal()] = AND;
+        ARITHMETIC[Operator.OR.ordinal()] = OR;
+        ARITHMETIC[Operator.NOT.ordinal()] = NOT;
     }
 
-    private void writeComparator(String command) {
-        String assembly = """
-                // %s
+    // pushes D onto the stack
+    private static final String PUSH_D = """
+            @SP
+            A=M
+            M=D
+            @SP
+            M=M+1
+            """;
+
+    // pops the stack top into D
+    private static final String POP_D = """
+            @SP
+            M=M-1
+            A=M
+            D=M
+            """;
+
+    private void writeComparator(Operator operator) {
+        // labels are numbered, so a function can hold any number of comparisons
+        if (this.sharedCompare) {
+            this.writeSharedComparator(operator);
+            return;
+        }
+        int n = this.compareCount++;
+        AsmBuffer asm = this.begin();
+        asm.append("// ").line(operator.text);
+        asm.append("""
                 @SP
                 M=M-1
                 A=M
@@ -152,70 +339,170 @@ public class CodeWriter {
                 M=M-1
                 A=M
                 D=M-D
-                @%s //jump to TRUE
-                D;%s // cjump
-                (%s) // continue false
+                """);
+        this.scopedLabel(asm.append('@'), "TRUE.").append(n).line(" //jump to TRUE");
+        asm.append("D;").append(operator.jump).line(" // cjump");
+        this.scopedLabel(asm.append('('), "FALSE.").append(n).line(") // continue false");
+        asm.append("""
                 @SP
                 A=M
                 M=0
-                @%s // jump to END
-                0;JMP
-                (%s) // true branch
+                """);
+        this.scopedLabel(asm.append('@'), "END.").append(n).line(" // jump to END");
+        asm.line("0;JMP");
+        this.scopedLabel(asm.append('('), "TRUE.").append(n).line(") // true branch");
+        asm.append("""
                 @SP
                 A=M
                 M=-1
-                (%s) // END
+                """);
+        this.scopedLabel(asm.append('('), "END.").append(n).line(") // END");
+        asm.append("""
                 @SP
                 M=M+1
-                """;
-        HashMap<String, String> cjump = new HashMap<>();
-        cjump.put("eq", "JEQ");
-        cjump.put("lt", "JLT");
-        cjump.put("gt", "JGT");
+                """);
+        this.end();
+    }
 
-        String prefix = "";
-        if (this.currFunction != "") {
-            prefix = this.currFunction + "$";
+    private void writeCachedArithmetic(Operator operator) {
+        // the result is left in D; y is taken from D, x from the stack
+        AsmBuffer asm = this.beginCached();
+        asm.append("// ").line(operator.text);
+        if (operator.arity == 1) {
+            if (this.topInD) {
+                asm.line(operator == Operator.NEG ? "D=-D" : "D=!D");
+            } else {
+                asm.line("@SP");
+                asm.line("AM=M-1");
+                asm.line(operator == Operator.NEG ? "D=-M" : "D=!M");
+            }
+            this.topInD = true;
+            this.end();
+            return;
+        }
+        if (!this.topInD) {
+            asm.line("@SP");
+            asm.line("AM=M-1");
+            asm.line("D=M");
+        }
+        asm.line("@SP");
+        asm.line("AM=M-1");
+        switch (operator) {
+            case Operator.ADD:
+                asm.line("D=D+M");
+                break;
+            case Operator.SUB:
+                asm.line("D=M-D");
+                break;
+            case Operator.AND:
+                asm.line("D=D&M");
+                break;
+            case Operator.OR:
+                asm.line("D=D|M");
+                break;
+            default:
+                // comparisons: x - y decides, as in writeComparator
+                int n = this.compareCount++;
+                asm.line("D=M-D");
+                this.scopedLabel(asm.append('@'), "TRUE.").line(n);
+                asm.append("D;").line(operator.jump);
+                asm.line("D=0");
+                this.scopedLabel(asm.append('@'), "END.").line(n);
+                asm.line("0;JMP");
+                this.scopedLabel(asm.append('('), "TRUE.").append(n).line(")");
+                asm.line("D=-1");
+                this.scopedLabel(asm.append('('), "END.").append(n).line(")");
         }
-        assembly = String.format(assembly, command, prefix + "TRUE", cjump.get(command), prefix + "FALSE",
-                prefix + "END", prefix + "TRUE", prefix + "END");
-        this.write(assembly);
+        this.topInD = true;
+        this.end();
     }
 
-    private void writeAnd() {
-        String assembly = """
-                // and
-                @SP
-                M=M-1
-                A=M
-                D=M
-                A=A-1
-                M=D&M
-                """;
-        this.write(assembly);
+    private void writeCachedPush(Segment segment, int index) {
+        // the previous top goes to RAM, the pushed value stays in D
+        AsmBuffer asm = this.beginPushPop("push", segment, index);
+        this.appendLoad(asm, segment, index);
+        this.topInD = true;
+        this.end();
+    }
+
+    private void writeCachedPop(Segment segment, int index) {
+        // stores D without going through the stack
+        AsmBuffer asm = this.beginCached().append("// pop ").append(segment.text).append(' ').line(index);
+        if (!segment.isPointer()) {
+            this.appendDirectAddress(asm, segment, index);
+        } else if (chainLength(index) < 12) {
+            // 12 instructions saving D in R13 otherwise
+            appendPointerAddress(asm, segment, index);
+        } else {
+            asm.line("@R13");
+            asm.line("M=D");
+            asm.append('@').line(index);
+            asm.line("D=A");
+            asm.append('@').line(segment.base);
+            asm.line("D=D+M");
+            asm.line("@R14");
+            asm.line("M=D");
+            asm.line("@R13");
+            asm.line("D=M");
+            asm.line("@R14");
+            asm.line("A=M");
+        }
+        asm.line("M=D");
+        this.topInD = false;
+        this.end();
+    }
+
+    private void writeSharedComparator(Operator operator) {
+        // D = return address
+        int n = this.compareCount++;
+        AsmBuffer asm = this.begin();
+        asm.append("// ").line(operator.text);
+        this.scopedLabel(asm.append('@'), "cmp.").line(n);
+        asm.line("D=A");
+        asm.append("@__vm_").line(operator.text);
+        asm.line("0;JMP");
+        this.scopedLabel(asm.append('('), "cmp.").append(n).line(")");
+        this.end();
     }
 
-    private void writeOr() {
-        String assembly = """
-                // or
+    private void writeSharedComparatorRoutine(Operator operator) {
+        // pops two values and pushes the comparison, then returns to the address in D
+        String command = operator.text;
+        this.mark(command);
+        AsmBuffer asm = this.asm;
+        asm.append("// ").append(command).line(": D = return address");
+        asm.append("(__vm_").append(command).line(")");
+        asm.append("""
+                @R13
+                M=D
                 @SP
-                M=M-1
-                A=M
+                AM=M-1
                 D=M
                 A=A-1
-                M=D|M
-                """;
-        this.write(assembly);
-    }
-
-    private void writeNot() {
-        String assembly = """
-                // not
+                D=M-D
+                M=-1
+                """);
+        asm.append("@__vm_").append(command).line("_end");
+        asm.append("D;").line(operator.jump);
+        asm.append("""
                 @SP
                 A=M-1
-                M=!M
-                """;
-        this.write(assembly);
+                M=0
+                """);
+        asm.append("(__vm_").append(command).line("_end)");
+        asm.append("""
+                @R13
+                A=M
+                0;JMP
+                """);
+    }
+
+    private AsmBuffer scopedLabel(AsmBuffer asm, String label) {
+        // label prefixed with the current function, if any
+        if (!this.currFunction.isEmpty()) {
+            asm.append(this.currFunction).append('$');
+        }
+        return asm.append(label);
     }
 
     void writePushPop(String command, String segment, int index) throws IOException, InvalidCommandException {
@@ -229,251 +516,333 @@ public class CodeWriter {
          * push the value to stack
          */
 
-        String topComment = String.join(" ", command, segment, Integer.toString(index));
         if (command.equals("push")) {
-            if (segment.equals("local")
-                    || segment.equals("argument")
-                    || segment.equals("this")
-                    || segment.equals("that")) {
-                this.writePush1(topComment, segmentSymbol.get(segment), index);
-            } else if (segment.equals("temp")) {
-                this.writePushTemp(topComment, index);
-            } else if (segment.equals("constant")) {
-                this.writePushConstant(topComment, index);
-            } else if (segment.equals("pointer") && index >= 0 && index <= 1) {
+            this.writePush(segment(Segment.of(segment)), index);
+        } else if (command.equals("pop")) {
+            this.writePop(segment(Segment.of(segment)), index);
+        }
+    }
+
+    void writePush(Segment segment, int index) throws InvalidCommandException {
+        if (this.cacheTop) {
+            checkSegment(true, segment, index);
+            this.writeCachedPush(segment, index);
+            return;
+        }
+        switch (segment) {
+            case Segment.LOCAL, Segment.ARGUMENT, Segment.THIS, Segment.THAT:
+                this.writePush1(segment, index);
+                break;
+            case Segment.TEMP:
+                this.writePushTemp(index);
+                break;
+            case Segment.CONSTANT:
+                this.writePushConstant(index);
+                break;
+            case Segment.POINTER:
+                checkPointer(index);
                 this.writePushPointer(index);
-            } else if (segment.equals("static")) {
+                break;
+            case Segment.STATIC:
                 this.writePushStatic(index);
-            } else {
-                throw new InvalidCommandException("Argument not supported to convert to assembly");
-            }
-        } else if (command.equals("pop")) {
-            if (segment.equals("local")
-                    || segment.equals("argument")
-                    || segment.equals("this")
-                    || segment.equals("that")) {
-                this.writePop1(topComment, segmentSymbol.get(segment), index);
-            } else if (segment.equals("temp")) {
-                this.writePopTemp(topComment, index);
-            } else if (segment.equals("pointer") && index >= 0 && index <= 1) {
+                break;
+        }
+    }
+
+    void writePop(Segment segment, int index) throws InvalidCommandException {
+        if (this.topInD) {
+            checkSegment(false, segment, index);
+            this.writeCachedPop(segment, index);
+            return;
+        }
+        switch (segment) {
+            case Segment.LOCAL, Segment.ARGUMENT, Segment.THIS, Segment.THAT:
+                this.writePop1(segment, index);
+                break;
+            case Segment.TEMP:
+                this.writePopTemp(index);
+                break;
+            case Segment.POINTER:
+                checkPointer(index);
                 this.writePopPointer(index);
-            } else if (segment.equals("static")) {
+                break;
+            case Segment.STATIC:
                 this.writePopStatic(index);
-            } else {
+                break;
+            case Segment.CONSTANT:
                 throw new InvalidCommandException("Argument not supported to convert to assembly");
+        }
+    }
+
+    private static void checkPointer(int index) throws InvalidCommandException {
+        if (index < 0 || index > 1) {
+            throw new InvalidCommandException("Argument not supported to convert to assembly");
+        }
+    }
+
+    private static void checkSegment(boolean push, Segment segment, int index) throws InvalidCommandException {
+        // same checks as writePush and writePop, for the fused writes
+        segment(segment);
+        if (segment == Segment.CONSTANT && !push) {
+            throw new InvalidCommandException("Argument not supported to convert to assembly");
+        }
+        if (segment == Segment.POINTER) {
+            checkPointer(index);
+        }
+    }
+
+    private void appendLoad(AsmBuffer asm, Segment segment, int index) {
+        // loads the value of segment[index] into D
+        if (segment == Segment.CONSTANT) {
+            asm.append('@').line(index);
+            asm.line("D=A");
+        } else if (segment.isPointer()) {
+            // @index D=A @base A=D+M otherwise
+            if (chainLength(index) < 4) {
+                appendPointerAddress(asm, segment, index);
+            } else {
+                asm.append('@').line(index);
+                asm.line("D=A");
+                asm.append('@').line(segment.base);
+                asm.line("A=D+M");
             }
+            asm.line("D=M");
+        } else {
+            this.appendDirectAddress(asm, segment, index);
+            asm.line("D=M");
         }
     }
 
-    private void writePush1(String topComment, String segmentSymbol, int index) {
-        String assembly = """
-                // %s
-                @%d
-                D=A
-                @%s
-                A=D+M
-                D=M
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        assembly = String.format(assembly, topComment, index, segmentSymbol);
-        this.write(assembly);
+    private static void appendPointerAddress(AsmBuffer asm, Segment segment, int index) {
+        // A = base + index in chainLength(index) instructions, D untouched
+        asm.append('@').line(segment.base);
+        asm.line(index == 0 ? "A=M" : "A=M+1");
+        for (int i = 1; i < index; i++) {
+            asm.line("A=A+1");
+        }
     }
 
-    private void writePushTemp(String topComment, int index) {
-        String assembly = """
-                // %s
-                @%d
-                D=M
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        assembly = String.format(assembly, topComment, 5 + index);
-        this.write(assembly);
+    private static int chainLength(int index) {
+        return index == 0 ? 2 : index + 1;
+    }
 
+    private void appendDirectAddress(AsmBuffer asm, Segment segment, int index) {
+        // A-instruction for temp, pointer and static, whose address is known
+        if (segment == Segment.TEMP) {
+            asm.append('@').line(5 + index);
+        } else if (segment == Segment.POINTER) {
+            asm.line(index == 0 ? "@THIS" : "@THAT");
+        } else {
+            asm.append('@').append(this.vmfilename).append('.').line(index);
+        }
     }
 
-    private void writePushConstant(String topComment, int index) {
-        String assembly = """
-                // %s
-                @%d
-                D=A
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        assembly = String.format(assembly, topComment, index);
-        this.write(assembly);
+    void writeConstantArithmetic(int constant, Operator operator) throws InvalidCommandException {
+        // push constant n followed by add or sub, applied to the stack top in place
+        if (operator != Operator.ADD && operator != Operator.SUB) {
+            throw new InvalidCommandException("Command not supported for assembly conversion:" + operator.text);
+        }
+        this.mark("push+" + operator.text);
+        if (this.topInD) {
+            AsmBuffer asm = this.beginCached().append("// push constant ").line(constant);
+            asm.append("// ").line(operator.text);
+            asm.append('@').line(constant);
+            asm.line(operator == Operator.ADD ? "D=D+A" : "D=D-A");
+            this.end();
+            return;
+        }
+        AsmBuffer asm = this.beginPushPop("push", Segment.CONSTANT, constant);
+        asm.append("// ").line(operator.text);
+        asm.append('@').line(constant);
+        asm.line("D=A");
+        asm.line("@SP");
+        asm.line("A=M-1");
+        asm.line(operator == Operator.ADD ? "M=D+M" : "M=M-D");
+        this.end();
+    }
+
+    void writeMove(Segment fromSegment, int fromIndex, Segment toSegment, int toIndex)
+            throws InvalidCommandException {
+        // push followed by pop, copied through D without touching the stack
+        checkSegment(true, fromSegment, fromIndex);
+        checkSegment(false, toSegment, toIndex);
+        this.mark("push+pop");
+        AsmBuffer asm = this.beginPushPop("push", fromSegment, fromIndex);
+        asm.append("// pop ").append(toSegment.text).append(' ').line(toIndex);
+        // 9 instructions around the load computing the address first otherwise
+        if (toSegment.isPointer() && chainLength(toIndex) + 1 < 9) {
+            this.appendLoad(asm, fromSegment, fromIndex);
+            appendPointerAddress(asm, toSegment, toIndex);
+            asm.line("M=D");
+        } else if (toSegment.isPointer()) {
+            asm.append('@').line(toIndex);
+            asm.line("D=A");
+            asm.append('@').line(toSegment.base);
+            asm.line("D=D+M");
+            asm.line("@address");
+            asm.line("M=D");
+            this.appendLoad(asm, fromSegment, fromIndex);
+            asm.line("@address");
+            asm.line("A=M");
+            asm.line("M=D");
+        } else {
+            this.appendLoad(asm, fromSegment, fromIndex);
+            this.appendDirectAddress(asm, toSegment, toIndex);
+            asm.line("M=D");
+        }
+        this.end();
+    }
 
+    void writePushIf(Segment segment, int index, String label) throws InvalidCommandException {
+        // push followed by if-goto, tested in D without touching the stack
+        checkSegment(true, segment, index);
+        this.mark("push+if-goto");
+        AsmBuffer asm = this.beginPushPop("push", segment, index);
+        asm.append("// if-goto ");
+        this.scopedLabel(asm, label).append('\n');
+        this.appendLoad(asm, segment, index);
+        this.scopedLabel(asm.append('@'), label).append('\n');
+        asm.line("D+1;JEQ");
+        asm.line("D;JGT");
+        this.end();
     }
 
-    private void writePop1(String topComment, String segmentSymbol, int index) {
-        String assembly = """
-                // %s
-                @%d
-                D=A
-                @%s
+    private AsmBuffer beginPushPop(String command, Segment segment, int index) {
+        // starts the command with its vm text as comment
+        return this.begin().append("// ").append(command).append(' ').append(segment.text).append(' ').line(index);
+    }
+
+    private void writePush1(Segment segment, int index) {
+        AsmBuffer asm = this.beginPushPop("push", segment, index);
+        this.appendLoad(asm, segment, index);
+        asm.append(PUSH_D);
+        this.end();
+    }
+
+    private void writePushTemp(int index) {
+        AsmBuffer asm = this.beginPushPop("push", Segment.TEMP, index);
+        asm.append('@').line(5 + index);
+        asm.line("D=M");
+        asm.append(PUSH_D);
+        this.end();
+    }
+
+    private void writePushConstant(int index) {
+        AsmBuffer asm = this.beginPushPop("push", Segment.CONSTANT, index);
+        asm.append('@').line(index);
+        asm.line("D=A");
+        asm.append(PUSH_D);
+        this.end();
+    }
+
+    private void writePop1(Segment segment, int index) {
+        AsmBuffer asm = this.beginPushPop("pop", segment, index);
+        // 13 instructions computing the address first otherwise
+        if (chainLength(index) + 4 < 13) {
+            asm.line("@SP");
+            asm.line("AM=M-1");
+            asm.line("D=M");
+            appendPointerAddress(asm, segment, index);
+            asm.line("M=D");
+            this.end();
+            return;
+        }
+        asm.append('@').line(index);
+        asm.line("D=A");
+        asm.append('@').line(segment.base);
+        asm.append("""
                 D=D+M
                 @address
                 M=D
-                @SP
-                M=M-1
-                A=M
-                D=M
+                """);
+        asm.append(POP_D);
+        asm.append("""
                 @address
                 A=M
                 M=D
-                """;
-        assembly = String.format(assembly, topComment, index, segmentSymbol);
-        this.write(assembly);
-
+                """);
+        this.end();
     }
 
-    private void writePopTemp(String topComment, int index) {
-        String assembly = """
-                // %s
-                @SP
-                M=M-1
-                A=M
-                D=M
-                @%d
-                M=D
-                """;
-        assembly = String.format(assembly, topComment, 5 + index);
-        this.write(assembly);
-
+    private void writePopTemp(int index) {
+        AsmBuffer asm = this.beginPushPop("pop", Segment.TEMP, index);
+        asm.append(POP_D);
+        asm.append('@').line(5 + index);
+        asm.line("M=D");
+        this.end();
     }
 
     private void writePushPointer(int index) {
-        String assembly = """
-                // push pointer %d
-                @%s // THIS or THAT
-                D=M
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        String segment;
-        if (index == 0) {
-            segment = "THIS";
-        } else {
-            segment = "THAT";
-        }
-        assembly = String.format(assembly, index, segment);
-        this.write(assembly);
+        AsmBuffer asm = this.beginPushPop("push", Segment.POINTER, index);
+        asm.append(index == 0 ? "@THIS" : "@THAT").line(" // THIS or THAT");
+        asm.line("D=M");
+        asm.append(PUSH_D);
+        this.end();
     }
 
     private void writePopPointer(int index) {
-        String assembly = """
-                // pop pointer %d
-                @SP
-                M=M-1
-                A=M
-                D=M
-                @%s // THIS or THAT
-                M=D
-                """;
-        String segment;
-        if (index == 0) {
-            segment = "THIS";
-        } else {
-            segment = "THAT";
-        }
-        assembly = String.format(assembly, index, segment);
-        this.write(assembly);
+        AsmBuffer asm = this.beginPushPop("pop", Segment.POINTER, index);
+        asm.append(POP_D);
+        asm.append(index == 0 ? "@THIS" : "@THAT").line(" // THIS or THAT");
+        asm.line("M=D");
+        this.end();
     }
 
     private void writePushStatic(int index) {
-        String assembly = """
-                // push static %d
-                @%s //xxx.i
-                D=M
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        assembly = String.format(assembly, index, this.vmfilename+"."+Integer.toString(index));
-        this.write(assembly);
+        AsmBuffer asm = this.beginPushPop("push", Segment.STATIC, index);
+        asm.append('@').append(this.vmfilename).append('.').append(index).line(" //xxx.i");
+        asm.line("D=M");
+        asm.append(PUSH_D);
+        this.end();
     }
 
     private void writePopStatic(int index) {
-        String assembly = """
-                // pop static %d
-                @SP
-                M=M-1
-                A=M
-                D=M
-                @%s // xxx.i
-                M=D
-                """;
-        assembly = String.format(assembly, index, this.vmfilename+"."+Integer.toString(index));
-        this.write(assembly);
+        AsmBuffer asm = this.beginPushPop("pop", Segment.STATIC, index);
+        asm.append(POP_D);
+        asm.append('@').append(this.vmfilename).append('.').append(index).line(" // xxx.i");
+        asm.line("M=D");
+        this.end();
     }
+
     void writeLabel(String label) {
-        if (currFunction != "") {
-            this.writeLabelOnly(this.currFunction + "$" + label);
-        } else {
-            this.writeLabelOnly(label);
-        }
+        AsmBuffer asm = this.begin().line("// label");
+        this.scopedLabel(asm.append('('), label).line(")");
+        this.end();
     }
 
     void writeLabelOnly(String label) {
-        String assembly = """
-                // label
-                (%s)
-                """;
-        assembly = String.format(assembly, label);
-        this.write(assembly);
+        this.begin().line("// label").append('(').append(label).line(")");
+        this.end();
     }
 
     void writeGoto(String label) {
-        if (currFunction != "") {
-            this.writeGotoOnly(this.currFunction + "$" + label);
-        } else {
-            this.writeGotoOnly(label);
-        }
+        AsmBuffer asm = this.begin().append("// goto ");
+        this.scopedLabel(asm, label).append('\n');
+        this.scopedLabel(asm.append('@'), label).append('\n');
+        asm.line("0;JMP");
+        this.end();
     }
 
     private void writeGotoOnly(String label) {
-        String assembly = """
-                // goto %s
-                @%s
-                0;JMP
-                """;
-        assembly = String.format(assembly, label, label);
-        this.write(assembly);
+        AsmBuffer asm = this.begin();
+        asm.append("// goto ").line(label);
+        asm.append('@').line(label);
+        asm.line("0;JMP");
+        this.end();
     }
 
     void writeIf(String label) {
         // if true(i.e. -1) on stack then jump to label
-        String assembly = """
-                // if-goto %s
-                @SP
-                M=M-1
-                A=M
-                D=M
-                @%s
-                D+1;JEQ
-                D;JGT
-                """;
-        if (this.currFunction == "") {
-            assembly = String.format(assembly, label, label);
-        } else {
-            assembly = String.format(assembly, this.currFunction + "$" + label, this.currFunction + "$" + label);
+        AsmBuffer asm = this.beginCached().append("// if-goto ");
+        this.scopedLabel(asm, label).append('\n');
+        if (!this.topInD) {
+            asm.append(POP_D);
         }
-        this.write(assembly);
+        this.topInD = false;
+        this.scopedLabel(asm.append('@'), label).append('\n');
+        asm.line("D+1;JEQ");
+        asm.line("D;JGT");
+        this.end();
     }
 
     void writeFunction(String functionName, int nVars) throws IOException, InvalidCommandException {
@@ -481,135 +850,532 @@ public class CodeWriter {
         // repeat nVars times to set local variables
         // push constant 0
         this.callCount = 1;
+        this.compareCount = 0;
         this.currFunction = functionName;
+        this.scopeStarted = true;
+        this.mark("function");
         this.writeLabelOnly(this.currFunction);
         for (int i = 0; i < nVars; i++) {
-            this.writePushPop("push", "constant", 0);
+            this.writePushConstant(0);
         }
     }
 
+    private static final String SAVE_CALLER_SEGMENTS = """
+            // save caller memory segment
+            @LCL
+            D=M
+            @SP
+            A=M
+            M=D
+            @SP
+            M=M+1
+            // save caller memory segment
+            @ARG
+            D=M
+            @SP
+            A=M
+            M=D
+            @SP
+            M=M+1
+            // save caller memory segment
+            @THIS
+            D=M
+            @SP
+            A=M
+            M=D
+            @SP
+            M=M+1
+            // save caller memory segment
+            @THAT
+            D=M
+            @SP
+            A=M
+            M=D
+            @SP
+            M=M+1
+            """;
+
     void writeCall(String functionName, int nArgs) {
-        String assembly = "";
-        // top comment
-        String topComment = "// call " + functionName + " " + Integer.toString(nArgs);
-        assembly = assembly + topComment;
+        if (this.sharedCallReturn) {
+            this.writeSharedCall(functionName, nArgs);
+            return;
+        }
+        this.markCall(functionName, "ret.");
+        // the top comment runs into the first section comment
+        AsmBuffer asm = this.begin();
+        asm.append("// call ").append(functionName).append(' ').append(nArgs);
         // return address
-        String retAddressLabel = this.currFunction + "$ret." + this.callCount;
-        String saveReturnAddress = """
-                // save returnAddrLabel
-                @%s
-                D=A
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-        assembly = assembly + String.format(saveReturnAddress, retAddressLabel);
-
-        String saveCallerSegment = """
-                // save caller memory segment
-                @%s
-                D=M
-                @SP
-                A=M
-                M=D
-                @SP
-                M=M+1
-                """;
-
-        assembly = assembly + String.format(saveCallerSegment, "LCL");
-        assembly = assembly + String.format(saveCallerSegment, "ARG");
-        assembly = assembly + String.format(saveCallerSegment, "THIS");
-        assembly = assembly + String.format(saveCallerSegment, "THAT");
-
-        String calleeArg = """
+        asm.line("// save returnAddrLabel");
+        asm.append('@').append(this.currFunction).append("$ret.").line(this.callCount);
+        asm.line("D=A");
+        asm.append(PUSH_D);
+        asm.append(SAVE_CALLER_SEGMENTS);
+        asm.append("""
                 // set callee ARG
                 @5
                 D=A
-                @%d
+                """);
+        asm.append('@').line(nArgs);
+        asm.append("""
                 D=D+A
                 @SP
                 D=M-D
                 @ARG
                 M=D
-                """;
-        assembly = assembly + String.format(calleeArg, nArgs);
-
-        String calleeLCL = """
                 // set callee LCL
                 @SP
                 D=M
                 @LCL
                 M=D
-                """;
-
-        assembly = assembly + calleeLCL;
-        this.write(assembly);
+                """);
+        this.end();
         this.writeGotoOnly(functionName);
-        this.writeLabel("ret." + this.callCount);
+        AsmBuffer ret = this.begin().line("// label");
+        this.scopedLabel(ret.append('('), "ret.").append(this.callCount).line(")");
+        this.end();
         this.callCount += 1;
     }
 
-    void writeReturn() {
-        String assembly = "";
-        String topComment = "// return";
-        assembly = assembly + topComment;
+    private void writeSharedCall(String functionName, int nArgs) {
+        // R13 = callee, R14 = nArgs, D = return address
+        this.markCall(functionName, "ret.");
+        AsmBuffer asm = this.begin();
+        asm.append("// call ").append(functionName).append(' ').line(nArgs);
+        asm.append('@').line(nArgs);
+        asm.line("D=A");
+        asm.line("@R14");
+        asm.line("M=D");
+        asm.append('@').line(functionName);
+        asm.line("D=A");
+        asm.line("@R13");
+        asm.line("M=D");
+        asm.append('@').append(this.currFunction).append("$ret.").line(this.callCount);
+        asm.line("D=A");
+        asm.line("@__vm_call");
+        asm.line("0;JMP");
+        this.end();
+        AsmBuffer ret = this.begin().line("// label");
+        this.scopedLabel(ret.append('('), "ret.").append(this.callCount).line(")");
+        this.end();
+        this.callCount += 1;
+    }
 
-        String resetMemorySegment = """
-                // reset memory segments for caller
-                @%d
-                D=A
+    private static final String COPY_CALLER_FRAME = """
+            // copy the frame saved by the caller above the arguments
+            @5
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @SP
+            M=M+1
+            A=M-1
+            M=D
+            @4
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @SP
+            M=M+1
+            A=M-1
+            M=D
+            @LCL
+            A=M-1
+            A=A-1
+            A=A-1
+            D=M
+            @SP
+            M=M+1
+            A=M-1
+            M=D
+            @LCL
+            A=M-1
+            A=A-1
+            D=M
+            @SP
+            M=M+1
+            A=M-1
+            M=D
+            @LCL
+            A=M-1
+            D=M
+            @SP
+            M=M+1
+            A=M-1
+            M=D
+            """;
+
+    // copies RAM[++R13] to RAM[++R14]
+    private static final String MOVE_WORD = """
+            @R13
+            AM=M+1
+            D=M
+            @R14
+            AM=M+1
+            M=D
+            """;
+
+    void writeTailCall(String functionName, int nArgs) {
+        /*
+         * a call followed by return: the callee takes over the current frame
+         * the arguments are moved down to ARG, followed by the frame the caller saved,
+         * so the callee returns straight to the caller and deep recursion
+         * does not grow the stack
+         * the saved frame only moves if the current function has a different
+         * number of arguments than the callee, which self recursion never has
+         */
+        if (this.sharedCallReturn) {
+            this.writeSharedTailCall(functionName, nArgs);
+            return;
+        }
+        this.markCall(functionName, "tail.");
+        AsmBuffer asm = this.begin();
+        asm.append("// call ").append(functionName).append(' ').append(nArgs).line(" and return");
+        asm.line("@SP");
+        asm.line("D=M");
+        asm.append('@').line(nArgs + 1);
+        asm.append("""
+                D=D-A
+                @R13
+                M=D
+                @ARG
+                D=M
+                @R14
+                M=D-1
+                """);
+        asm.append('@').line(nArgs + 5);
+        asm.append("""
+                D=D+A
+                @LCL
+                D=D-M
+                """);
+        this.scopedLabel(asm.append('@'), "tail.").line(this.callCount);
+        asm.line("D;JNE");
+        asm.line("// move arguments down to ARG, the saved frame is already above them");
+        for (int i = 0; i < nArgs; i++) {
+            asm.append(MOVE_WORD);
+        }
+        asm.append("""
                 @LCL
-                A=M-D
                 D=M
-                @%s
+                @SP
                 M=D
-                """;
-        String returnAddress = "returnAddress";
-        assembly = assembly + String.format(resetMemorySegment, 5, returnAddress);
+                """);
+        asm.append('@').line(functionName);
+        asm.line("0;JMP");
+        this.scopedLabel(asm.append('('), "tail.").append(this.callCount).line(")");
+        asm.append(COPY_CALLER_FRAME);
+        asm.line("// move arguments and frame down to ARG");
+        for (int i = 0; i < nArgs + 5; i++) {
+            asm.append(MOVE_WORD);
+        }
+        asm.append("""
+                @R14
+                D=M+1
+                @SP
+                M=D
+                @LCL
+                M=D
+                """);
+        asm.append('@').line(functionName);
+        asm.line("0;JMP");
+        this.end();
+        this.callCount += 1;
+    }
 
-        String pushResult = """
-                // push result
+    private void writeSharedTailCall(String functionName, int nArgs) {
+        // R15 = callee, D = nArgs
+        this.markCall(functionName, "tail.");
+        AsmBuffer asm = this.begin();
+        asm.append("// call ").append(functionName).append(' ').append(nArgs).line(" and return");
+        asm.append('@').line(functionName);
+        asm.line("D=A");
+        asm.line("@R15");
+        asm.line("M=D");
+        asm.append('@').line(nArgs);
+        asm.line("D=A");
+        asm.line("@__vm_tail");
+        asm.line("0;JMP");
+        this.end();
+        this.callCount += 1;
+    }
+
+    void writeSharedRoutines() {
+        /*
+         * writes the routines that shared calls, returns and comparisons jump to
+         * they are skipped over, so this can be written ahead of any other code
+         */
+        String function = this.currFunction;
+        this.currFunction = "(shared)";
+        this.mark("init");
+        this.begin().append("""
+                // shared routines
+                @__vm_start
+                0;JMP
+                """);
+        if (this.sharedCompare) {
+            this.writeSharedComparatorRoutine(Operator.EQ);
+            this.writeSharedComparatorRoutine(Operator.GT);
+            this.writeSharedComparatorRoutine(Operator.LT);
+        }
+        if (!this.sharedCallReturn) {
+            this.asm.line("(__vm_start)");
+            this.end();
+            this.currFunction = function;
+            return;
+        }
+        this.mark("call");
+        this.asm.append("""
+                // call: R13 = callee, R14 = nArgs, D = return address
+                (__vm_call)
                 @SP
-                A=M-1
-                D=M
-                @ARG
                 A=M
                 M=D
-                """;
-        assembly = assembly + pushResult;
-        String resetSP = """
-                // reset SP to ARG+1
+                @SP
+                M=M+1
+                """).append(SAVE_CALLER_SEGMENTS).append("""
+                // set callee ARG
+                @R14
+                D=M
+                @5
+                D=D+A
+                @SP
+                D=M-D
                 @ARG
-                D=M+1
+                M=D
+                // set callee LCL
                 @SP
+                D=M
+                @LCL
                 M=D
-                """;
-        assembly = assembly + resetSP;
-
-        assembly = assembly + String.format(resetMemorySegment, 1, "THAT");
-        assembly = assembly + String.format(resetMemorySegment, 2, "THIS");
-        assembly = assembly + String.format(resetMemorySegment, 3, "ARG");
-        assembly = assembly + String.format(resetMemorySegment, 4, "LCL");
-
-        String goToReturnAddress = """
-                // jump to returnAddress
-                @%s
+                // jump to callee
+                @R13
                 A=M
                 0;JMP
-                """;
-        assembly = assembly + String.format(goToReturnAddress, returnAddress);
-        this.write(assembly);
+                """);
+        if (this.tailCalls) {
+            this.mark("call");
+            this.asm.append("""
+                    // tail call: R15 = callee, D = nArgs
+                    (__vm_tail)
+                    @SP
+                    D=M-D
+                    @R13
+                    M=D-1
+                    @ARG
+                    D=M-1
+                    @R14
+                    M=D
+                    // the saved frame stays in place if LCL - ARG - 5 = nArgs = SP - R13 - 1
+                    @LCL
+                    D=M
+                    @ARG
+                    D=D-M
+                    @R13
+                    D=D+M
+                    @SP
+                    D=D-M
+                    @4
+                    D=D-A
+                    @__vm_tail_frame
+                    D;JNE
+                    // move arguments down to ARG
+                    (__vm_tail_arguments)
+                    @R13
+                    D=M+1
+                    @SP
+                    D=D-M
+                    @__vm_tail_jump
+                    D;JGE
+                    """).append(MOVE_WORD).append("""
+                    @__vm_tail_arguments
+                    0;JMP
+                    (__vm_tail_jump)
+                    @LCL
+                    D=M
+                    @SP
+                    M=D
+                    @R15
+                    A=M
+                    0;JMP
+                    (__vm_tail_frame)
+                    """).append(COPY_CALLER_FRAME).append("""
+                    // move arguments and frame down to ARG
+                    (__vm_tail_move)
+                    """).append(MOVE_WORD).append("""
+                    @R13
+                    D=M+1
+                    @SP
+                    D=D-M
+                    @__vm_tail_move
+                    D;JLT
+                    @R14
+                    D=M+1
+                    @SP
+                    M=D
+                    @LCL
+                    M=D
+                    // jump to callee
+                    @R15
+                    A=M
+                    0;JMP
+                    """);
+        }
+        this.mark("return");
+        this.asm.append("""
+                // return
+                (__vm_return)
+                """).append(RESTORE_CALLER_FRAME).line("(__vm_start)");
+        this.end();
+        this.currFunction = function;
+    }
+
+    void writeReturn() {
+        if (this.sharedCallReturn) {
+            this.begin().append("""
+                    // return
+                    @__vm_return
+                    0;JMP
+                    """);
+            this.end();
+            return;
+        }
+        this.begin().append(RETURN);
+        this.end();
     }
 
-    private void write(String assembly) {
+    private static final String RESTORE_CALLER_FRAME = """
+            // reset memory segments for caller
+            @5
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @returnAddress
+            M=D
+            // push result
+            @SP
+            A=M-1
+            D=M
+            @ARG
+            A=M
+            M=D
+            // reset SP to ARG+1
+            @ARG
+            D=M+1
+            @SP
+            M=D
+            // reset memory segments for caller
+            @1
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @THAT
+            M=D
+            // reset memory segments for caller
+            @2
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @THIS
+            M=D
+            // reset memory segments for caller
+            @3
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @ARG
+            M=D
+            // reset memory segments for caller
+            @4
+            D=A
+            @LCL
+            A=M-D
+            D=M
+            @LCL
+            M=D
+            // jump to returnAddress
+            @returnAddress
+            A=M
+            0;JMP
+            """;
+    // the top comment runs into the first section comment
+    private static final String RETURN = "// return" + RESTORE_CALLER_FRAME;
+
+
+    private void mark(String kind) {
+        // names the vm command and function of the instructions that follow
+        this.kind = kind;
+        if (this.profile) {
+            this.asm.append(PROFILE_MARKER).append(kind).append(' ').line(this.currFunction);
+        }
+    }
+
+    private void markCall(String functionName, String site) {
+        // a call also names its call site, by the return address label
+        // or, for a tail call, which has none, by tail.<n>
+        this.kind = "call";
+        if (this.profile) {
+            this.asm.append(PROFILE_MARKER).append("call ").append(this.currFunction).append(' ')
+                    .append(functionName).append(' ').append(this.currFunction).append('$').append(site)
+                    .line(this.callCount);
+        }
+    }
+
+    private AsmBuffer begin() {
+        // starts the assembly of one command that uses the stack in RAM or D,
+        // after a stack top kept in D is written to RAM
+        AsmBuffer asm = this.beginCached();
+        if (this.topInD) {
+            asm.append(PUSH_D);
+            this.topInD = false;
+        }
+        return asm;
+    }
+
+    private AsmBuffer beginCached() {
+        // starts the assembly of one command that knows where the stack top is
+        if (!this.scopeStarted) {
+            this.usedPriorScope = true;
+        }
         try {
-            System.out.println("Writing..." + assembly);
-            this.bw.write(assembly);
+            this.asm.flushIfFull();
         } catch (IOException e) {
             System.out.println("Could not write to file");
             e.printStackTrace();
         }
+        this.commandStart = this.asm.length();
+        return this.asm;
+    }
+
+    private void end() {
+        // finishes the command started by begin()
+        if (this.metrics != null) {
+            int count = this.asm.instructionsSince(this.commandStart);
+            if (count > 0) {
+                this.metrics.instructions(this.kind, count);
+            }
+        }
+        if (this.logLevel == LogLevel.TRACE) {
+            try {
+                this.trace();
+            } catch (IOException e) {
+                System.out.println("Could not write to trace");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void trace() throws IOException {
+        // the sink may be shared by writers of a parallel translation
+        synchronized (this.traceSink) {
+            this.traceSink.write("Writing...");
+            this.asm.copyTo(this.traceSink, this.commandStart);
+            this.traceSink.write(System.lineSeparator());
+        }
     }
 }
@@ -0,0 +1,17 @@
+package vmtranslator;
+
+record Command(CommandType type, String arg1, int arg2, Segment segment, Operator operator) {
+    /*
+     * a parsed vm command that outlives the next Parser.advance()
+     * arg1 is null and arg2 is 0 where the command type has no such argument
+     * segment is set for push/pop and operator for arithmetic, null elsewhere
+     * or if arg1 names no known segment or operator
+     */
+
+    Command(CommandType type, String arg1, int arg2) {
+        // resolves segment and operator from arg1
+        this(type, arg1, arg2,
+                type == CommandType.C_PUSH || type == CommandType.C_POP ? Segment.of(arg1) : null,
+                type == CommandType.C_ARITHMETIC ? Operator.of(arg1) : null);
+    }
+}
@@ -0,0 +1,109 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+class CommandRing {
+    /*
+     * bounded queue of parsed commands from one parser thread to one code generation thread
+     * with a single producer and a single consumer, head and tail are each written
+     * by one thread only, so no lock is taken: a slot is published by the volatile
+     * write of tail and released by the volatile write of head
+     * a side that finds the ring full or empty spins briefly, then parks for short
+     * intervals until the other side moves, so no wakeup can be missed
+     */
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 20_000;
+    private final Command[] slots;
+    private final int mask;
+    // next slot to take, written by the consumer only
+    private volatile long head;
+    // next slot to fill, written by the producer only
+    private volatile long tail;
+    // set by the producer after its last put
+    private volatile boolean closed;
+    private volatile Exception failure;
+    // set by the consumer when it stops taking
+    private volatile boolean cancelled;
+
+    CommandRing(int capacity) {
+        // capacity is rounded up to a power of two
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Command[size];
+        this.mask = size - 1;
+    }
+
+    boolean put(Command command) {
+        // false if the consumer stopped, the command is then dropped
+        int idle = 0;
+        while (this.tail - this.head == this.slots.length) {
+            if (this.cancelled) {
+                return false;
+            }
+            idle = idle(idle);
+        }
+        long tail = this.tail;
+        this.slots[(int) tail & this.mask] = command;
+        this.tail = tail + 1;
+        return !this.cancelled;
+    }
+
+    void close() {
+        // no more commands will be put
+        this.closed = true;
+    }
+
+    void fail(Exception failure) {
+        // the producer stopped at an error, reported to the consumer after the commands before it
+        this.failure = failure;
+        this.closed = true;
+    }
+
+    Command take() {
+        // null once the ring is closed and empty
+        int idle = 0;
+        while (this.head == this.tail) {
+            if (this.closed) {
+                // tail was written before closed, so it is final now
+                if (this.head == this.tail) {
+                    return null;
+                }
+                break;
+            }
+            idle = idle(idle);
+        }
+        long head = this.head;
+        int slot = (int) head & this.mask;
+        Command command = this.slots[slot];
+        this.slots[slot] = null;
+        this.head = head + 1;
+        return command;
+    }
+
+    void cancel() {
+        // the consumer takes no more commands; releases a producer waiting for room
+        this.cancelled = true;
+    }
+
+    void rethrowFailure() throws IOException, InvalidCommandException {
+        Exception failure = this.failure;
+        if (failure instanceof IOException e) {
+            throw e;
+        } else if (failure instanceof InvalidCommandException e) {
+            throw e;
+        } else if (failure instanceof RuntimeException e) {
+            throw e;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    private static int idle(int idle) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+}
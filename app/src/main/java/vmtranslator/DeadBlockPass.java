@@ -0,0 +1,84 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+class DeadBlockPass implements Pass {
+    /*
+     * splits each function into basic blocks and drops the blocks
+     * no path from the function entry reaches, through fall through and jumps
+     * a block starts at a label and ends after a goto, if-goto or return
+     */
+
+    @Override
+    public String name() {
+        return "dce";
+    }
+
+    @Override
+    public Ir run(Ir ir) {
+        Ir live = new Ir(ir);
+        for (int start = 0; start < ir.size(); start = ir.functionEnd(start)) {
+            this.runFunction(ir, start, ir.functionEnd(start), live);
+        }
+        return live;
+    }
+
+    private void runFunction(Ir ir, int start, int end, Ir live) {
+        // start of each block of the function, then end
+        ArrayList<Integer> blocks = new ArrayList<>();
+        // block of each label, by symbol
+        HashMap<Integer, Integer> labelBlock = new HashMap<>();
+        int blockStart = start;
+        for (int i = start; i < end; i++) {
+            byte opcode = ir.opcode(i);
+            if (opcode == Ir.LABEL) {
+                if (i > blockStart) {
+                    blocks.add(blockStart);
+                    blockStart = i;
+                }
+                labelBlock.put(ir.symbolId(i), blocks.size());
+            }
+            if (opcode == Ir.GOTO || opcode == Ir.IF || opcode == Ir.RETURN) {
+                blocks.add(blockStart);
+                blockStart = i + 1;
+            }
+        }
+        if (blockStart < end) {
+            blocks.add(blockStart);
+        }
+        blocks.add(end);
+
+        boolean[] reachable = new boolean[blocks.size() - 1];
+        ArrayList<Integer> worklist = new ArrayList<>();
+        if (reachable.length > 0) {
+            reachable[0] = true;
+            worklist.add(0);
+        }
+        while (!worklist.isEmpty()) {
+            int block = worklist.remove(worklist.size() - 1);
+            int last = blocks.get(block + 1) - 1;
+            byte opcode = ir.opcode(last);
+            if (opcode == Ir.GOTO || opcode == Ir.IF) {
+                Integer target = labelBlock.get(ir.symbolId(last));
+                if (target != null && !reachable[target]) {
+                    reachable[target] = true;
+                    worklist.add(target);
+                }
+            }
+            boolean fallsThrough = opcode != Ir.GOTO && opcode != Ir.RETURN;
+            if (fallsThrough && block + 1 < reachable.length && !reachable[block + 1]) {
+                reachable[block + 1] = true;
+                worklist.add(block + 1);
+            }
+        }
+
+        for (int block = 0; block < reachable.length; block++) {
+            if (reachable[block]) {
+                for (int i = blocks.get(block); i < blocks.get(block + 1); i++) {
+                    live.copy(ir, i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package vmtranslator;
+
+class FoldPass implements Pass {
+    /*
+     * folds arithmetic on constants within a basic block
+     *   push constant 2, push constant 3, add -> push constant 5
+     * and turns if-goto on a constant into goto or nothing
+     * any command other than push constant and arithmetic ends the run of
+     * constants, so blocks need not be split first
+     * folding follows the 16 bit arithmetic of the generated assembly,
+     * including the overflow of the subtraction behind gt and lt
+     */
+    private static final int CONSTANT = Segment.CONSTANT.ordinal();
+
+    @Override
+    public String name() {
+        return "fold";
+    }
+
+    @Override
+    public Ir run(Ir ir) {
+        Ir folded = new Ir(ir);
+        // constants pushed by the last commands of folded, and how many commands each took
+        int[] values = new int[ir.size()];
+        int[] sizes = new int[ir.size()];
+        int depth = 0;
+        for (int i = 0; i < ir.size(); i++) {
+            byte opcode = ir.opcode(i);
+            Operator operator = ir.operator(i);
+            if (opcode == Ir.PUSH && ir.segment(i) == Segment.CONSTANT) {
+                folded.copy(ir, i);
+                values[depth] = (short) ir.operand(i);
+                sizes[depth++] = 1;
+            } else if (operator != null && depth >= operator.arity) {
+                int y = values[depth - 1];
+                int x = operator.arity == 2 ? values[depth - 2] : 0;
+                for (int k = 0; k < operator.arity; k++) {
+                    depth--;
+                    folded.truncate(folded.size() - sizes[depth]);
+                }
+                int result = evaluate(operator, x, y);
+                values[depth] = result;
+                sizes[depth] = pushConstant(folded, result);
+                depth++;
+            } else if (opcode == Ir.IF && depth >= 1) {
+                // repeats the jump condition of CodeWriter.writeIf
+                int condition = values[depth - 1];
+                folded.truncate(folded.size() - sizes[depth - 1]);
+                if (condition == -1 || condition > 0) {
+                    folded.add(Ir.GOTO, -1, 0, ir.symbolId(i));
+                }
+                depth = 0;
+            } else {
+                folded.copy(ir, i);
+                depth = 0;
+            }
+        }
+        return folded;
+    }
+
+    private static int evaluate(Operator operator, int x, int y) {
+        // x and y are 16 bit values; x is unused for neg and not
+        switch (operator) {
+            case Operator.ADD:
+                return (short) (x + y);
+            case Operator.SUB:
+                return (short) (x - y);
+            case Operator.NEG:
+                return (short) -y;
+            case Operator.AND:
+                return x & y;
+            case Operator.OR:
+                return x | y;
+            case Operator.NOT:
+                return ~y;
+            case Operator.EQ:
+                return x == y ? -1 : 0;
+            case Operator.GT:
+                return (short) (x - y) > 0 ? -1 : 0;
+            case Operator.LT:
+                return (short) (x - y) < 0 ? -1 : 0;
+            default:
+                throw new IllegalArgumentException("Not an arithmetic command: " + operator);
+        }
+    }
+
+    private static int pushConstant(Ir ir, int value) {
+        // push constant only takes 0..32767, other values are built with neg or not
+        if (value >= 0) {
+            ir.add(Ir.PUSH, CONSTANT, value, -1);
+        } else if (value == Short.MIN_VALUE) {
+            ir.add(Ir.PUSH, CONSTANT, Short.MAX_VALUE, -1);
+            ir.add(Ir.ARITHMETIC, -1, Operator.NOT.ordinal(), -1);
+        } else {
+            ir.add(Ir.PUSH, CONSTANT, -value, -1);
+            ir.add(Ir.ARITHMETIC, -1, Operator.NEG.ordinal(), -1);
+        }
+        return value >= 0 ? 1 : 2;
+    }
+}
@@ -0,0 +1,71 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+class FunctionPruner {
+    /*
+     * whole program pass over the files of a directory
+     * indexes every function and the functions it calls, then keeps only
+     * the functions reachable from Sys.init, which the bootstrap code calls
+     * commands before the first function of a file are always kept,
+     * so the functions they call are reachable too
+     */
+    private static final String ENTRY = "Sys.init";
+
+    List<List<Command>> prune(List<List<Command>> program) {
+        // call graph: function -> functions it calls
+        HashMap<String, List<String>> calls = new HashMap<>();
+        // functions called from commands before the first function of a file
+        List<String> roots = new ArrayList<>();
+        roots.add(ENTRY);
+        for (List<Command> commands : program) {
+            List<String> callees = null;
+            for (Command command : commands) {
+                if (command.type() == CommandType.C_FUNCTION) {
+                    callees = calls.computeIfAbsent(command.arg1(), name -> new ArrayList<>());
+                } else if (command.type() == CommandType.C_CALL) {
+                    (callees != null ? callees : roots).add(command.arg1());
+                }
+            }
+        }
+        if (!calls.containsKey(ENTRY)) {
+            // not a complete program, nothing is known to be dead
+            return program;
+        }
+
+        HashSet<String> reachable = new HashSet<>();
+        ArrayList<String> worklist = new ArrayList<>();
+        for (String root : roots) {
+            if (reachable.add(root)) {
+                worklist.add(root);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            String function = worklist.remove(worklist.size() - 1);
+            for (String callee : calls.getOrDefault(function, List.of())) {
+                if (reachable.add(callee)) {
+                    worklist.add(callee);
+                }
+            }
+        }
+
+        List<List<Command>> pruned = new ArrayList<>(program.size());
+        for (List<Command> commands : program) {
+            List<Command> kept = new ArrayList<>(commands.size());
+            boolean keep = true;
+            for (Command command : commands) {
+                if (command.type() == CommandType.C_FUNCTION) {
+                    keep = reachable.contains(command.arg1());
+                }
+                if (keep) {
+                    kept.add(command);
+                }
+            }
+            pruned.add(kept);
+        }
+        return pruned;
+    }
+}
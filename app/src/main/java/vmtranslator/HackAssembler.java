@@ -0,0 +1,255 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+class HackAssembler extends Writer {
+    /*
+     * --hack: assembles the assembly written by CodeWriter line by line as it arrives
+     * and writes Hack machine code (.hack) instead of the assembly text
+     * a symbol used before its label is defined is back-patched when the label appears;
+     * symbols that never get a label are variables, allocated from address 16
+     * in order of first use, the same as a two pass assembler would
+     * profile markers written by CodeWriter are kept as the origin of the instructions
+     * that follow them, for the profiler
+     */
+    private static final HashMap<String, Integer> PREDEFINED = new HashMap<>();
+    private static final HashMap<String, Integer> COMP = new HashMap<>();
+    private static final HashMap<String, Integer> JUMP = new HashMap<>();
+    private static final int FIRST_VARIABLE = 16;
+
+    static {
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+
+        // a bit and c bits of each computation, commuted forms included
+        String[] comps = {
+                "0", "101010", "1", "111111", "-1", "111010",
+                "D", "001100", "A", "110000", "!D", "001101", "!A", "110001",
+                "-D", "001111", "-A", "110011", "D+1", "011111", "A+1", "110111",
+                "D-1", "001110", "A-1", "110010", "D+A", "000010", "D-A", "010011",
+                "A-D", "000111", "D&A", "000000", "D|A", "010101" };
+        for (int i = 0; i < comps.length; i += 2) {
+            int bits = Integer.parseInt(comps[i + 1], 2);
+            putComp(comps[i], bits);
+            if (comps[i].indexOf('A') >= 0) {
+                putComp(comps[i].replace('A', 'M'), 0b1000000 | bits);
+            }
+        }
+
+        String[] jumps = { "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+        for (int i = 0; i < jumps.length; i++) {
+            JUMP.put(jumps[i], i + 1);
+        }
+    }
+
+    private static void putComp(String comp, int bits) {
+        COMP.put(comp, bits);
+        if (comp.length() == 3 && "+&|".indexOf(comp.charAt(1)) >= 0) {
+            COMP.put("" + comp.charAt(2) + comp.charAt(1) + comp.charAt(0), bits);
+        }
+    }
+
+    private final Writer out;
+    // the line being received, until its newline arrives
+    private final StringBuilder line = new StringBuilder();
+    private int[] code = new int[1024];
+    // index in markers of the profile marker each instruction follows, -1 if none
+    private int[] origins = new int[1024];
+    private int length;
+    private final List<String> markers = new ArrayList<>();
+    private final HashMap<String, Integer> labels = new HashMap<>();
+    // positions of the A instructions waiting for each undefined symbol, in order of first use
+    private final LinkedHashMap<String, List<Integer>> unresolved = new LinkedHashMap<>();
+    private int lineNumber;
+
+    HackAssembler(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) throws IOException {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            if (chars[i] == '\n') {
+                this.assemble();
+            } else {
+                this.line.append(chars[i]);
+            }
+        }
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        this.write(s.toCharArray(), 0, s.length());
+    }
+
+    @Override
+    public void flush() {
+        // code can only be written once every label is known
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.line.length() > 0) {
+            this.assemble();
+        }
+        int next = FIRST_VARIABLE;
+        for (List<Integer> uses : this.unresolved.values()) {
+            for (int pc : uses) {
+                this.code[pc] = next;
+            }
+            next++;
+        }
+        this.unresolved.clear();
+        char[] word = new char[17];
+        word[16] = '\n';
+        for (int pc = 0; pc < this.length; pc++) {
+            for (int bit = 0; bit < 16; bit++) {
+                word[bit] = (this.code[pc] & (1 << (15 - bit))) != 0 ? '1' : '0';
+            }
+            this.out.write(word);
+        }
+        this.out.close();
+    }
+
+    short[] rom() {
+        // the machine code, once closed
+        short[] rom = new short[this.length];
+        for (int pc = 0; pc < this.length; pc++) {
+            rom[pc] = (short) this.code[pc];
+        }
+        return rom;
+    }
+
+    int[] origins() {
+        return Arrays.copyOf(this.origins, this.length);
+    }
+
+    List<String> markers() {
+        return this.markers;
+    }
+
+    private void assemble() throws IOException {
+        this.lineNumber++;
+        if (this.line.indexOf(CodeWriter.PROFILE_MARKER) == 0) {
+            this.markers.add(this.line.substring(CodeWriter.PROFILE_MARKER.length()));
+            this.line.setLength(0);
+            return;
+        }
+        int comment = this.line.indexOf("//");
+        String instruction = (comment >= 0 ? this.line.substring(0, comment) : this.line.toString()).trim();
+        this.line.setLength(0);
+        if (instruction.isEmpty()) {
+            return;
+        }
+        if (instruction.startsWith("(")) {
+            if (!instruction.endsWith(")")) {
+                throw this.invalid(instruction);
+            }
+            this.defineLabel(instruction.substring(1, instruction.length() - 1));
+        } else if (instruction.startsWith("@")) {
+            this.emit(this.address(instruction.substring(1)));
+        } else {
+            this.emit(this.compute(instruction));
+        }
+    }
+
+    private void defineLabel(String label) throws IOException {
+        if (this.labels.containsKey(label) || PREDEFINED.containsKey(label)) {
+            throw new IOException("Label defined twice: " + label + " at line " + this.lineNumber);
+        }
+        this.labels.put(label, this.length);
+        List<Integer> uses = this.unresolved.remove(label);
+        if (uses != null) {
+            for (int pc : uses) {
+                this.code[pc] = this.length;
+            }
+        }
+    }
+
+    private int address(String symbol) throws IOException {
+        if (symbol.isEmpty()) {
+            throw this.invalid("@");
+        }
+        if (Character.isDigit(symbol.charAt(0))) {
+            int value;
+            try {
+                value = Integer.parseInt(symbol);
+            } catch (NumberFormatException e) {
+                throw this.invalid("@" + symbol);
+            }
+            if (value > 32767) {
+                throw this.invalid("@" + symbol);
+            }
+            return value;
+        }
+        Integer value = PREDEFINED.get(symbol);
+        if (value == null) {
+            value = this.labels.get(symbol);
+        }
+        if (value != null) {
+            return value;
+        }
+        // patched once the label is defined, or when variables are allocated
+        this.unresolved.computeIfAbsent(symbol, s -> new ArrayList<>()).add(this.length);
+        return 0;
+    }
+
+    private int compute(String instruction) throws IOException {
+        // dest=comp;jump, dest and jump optional
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String comp = instruction.substring(equals + 1, semicolon < 0 ? instruction.length() : semicolon).trim();
+        Integer compBits = COMP.get(comp);
+        if (compBits == null) {
+            throw this.invalid(instruction);
+        }
+        int destBits = 0;
+        if (equals >= 0) {
+            for (int i = 0; i < equals; i++) {
+                char c = instruction.charAt(i);
+                int bit = c == 'A' ? 4 : c == 'D' ? 2 : c == 'M' ? 1 : 0;
+                if (bit == 0 && c != ' ') {
+                    throw this.invalid(instruction);
+                }
+                destBits |= bit;
+            }
+        }
+        int jumpBits = 0;
+        if (semicolon >= 0) {
+            Integer jump = JUMP.get(instruction.substring(semicolon + 1).trim());
+            if (jump == null) {
+                throw this.invalid(instruction);
+            }
+            jumpBits = jump;
+        }
+        return 0b1110000000000000 | compBits << 6 | destBits << 3 | jumpBits;
+    }
+
+    private void emit(int word) {
+        if (this.length == this.code.length) {
+            this.code = Arrays.copyOf(this.code, 2 * this.length);
+            this.origins = Arrays.copyOf(this.origins, 2 * this.length);
+        }
+        this.origins[this.length] = this.markers.size() - 1;
+        this.code[this.length++] = word;
+    }
+
+    private IOException invalid(String instruction) {
+        return new IOException("Invalid instruction: " + instruction + " at line " + this.lineNumber);
+    }
+}
@@ -0,0 +1,97 @@
+package vmtranslator;
+
+class HackEmulator {
+    /*
+     * runs Hack machine code and counts how often each instruction is executed
+     * a jump back to the A instruction loading its own address, the usual
+     * (END) @END 0;JMP loop, is taken as the end of the program
+     */
+    static final int RAM_SIZE = 32768;
+    private final short[] rom;
+    private final short[] ram = new short[RAM_SIZE];
+    private final long[] counts;
+    private int pc;
+    private boolean halted;
+
+    HackEmulator(short[] rom) {
+        this.rom = rom;
+        this.counts = new long[rom.length];
+    }
+
+    short[] ram() {
+        return this.ram;
+    }
+
+    long[] counts() {
+        // executions of each instruction, by address
+        return this.counts;
+    }
+
+    boolean halted() {
+        return this.halted;
+    }
+
+    long run(long maxInstructions) {
+        // returns the number of instructions executed
+        short[] rom = this.rom;
+        short[] ram = this.ram;
+        long[] counts = this.counts;
+        int pc = this.pc;
+        int a = 0;
+        int d = 0;
+        long executed = 0;
+        while (executed < maxInstructions && pc < rom.length) {
+            int instruction = rom[pc];
+            counts[pc]++;
+            executed++;
+            if (instruction >= 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+            // zx nx zy ny f no of the ALU, y is M if the a bit is set
+            int x = d;
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7fff] : a;
+            if ((instruction & 0x0800) != 0) {
+                x = 0;
+            }
+            if ((instruction & 0x0400) != 0) {
+                x = ~x;
+            }
+            if ((instruction & 0x0200) != 0) {
+                y = 0;
+            }
+            if ((instruction & 0x0100) != 0) {
+                y = ~y;
+            }
+            int out = (instruction & 0x0080) != 0 ? x + y : x & y;
+            if ((instruction & 0x0040) != 0) {
+                out = ~out;
+            }
+            out = (short) out;
+            if ((instruction & 0x0008) != 0) {
+                ram[a & 0x7fff] = (short) out;
+            }
+            int target = a;
+            if ((instruction & 0x0020) != 0) {
+                a = out;
+            }
+            if ((instruction & 0x0010) != 0) {
+                d = out;
+            }
+            boolean jump = (out < 0 && (instruction & 0x4) != 0)
+                    || (out == 0 && (instruction & 0x2) != 0)
+                    || (out > 0 && (instruction & 0x1) != 0);
+            if (!jump) {
+                pc++;
+            } else if (target == pc - 1 && pc > 0 && rom[pc - 1] == pc - 1) {
+                this.halted = true;
+                break;
+            } else {
+                pc = target & 0xffff;
+            }
+        }
+        this.pc = pc;
+        return executed;
+    }
+}
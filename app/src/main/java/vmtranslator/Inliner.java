@@ -0,0 +1,335 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+class Inliner {
+    /*
+     * whole program pass over the files of a directory
+     * replaces calls to small leaf functions, which call no function, by their body:
+     * the arguments are popped into locals added to the end of the caller's frame,
+     * the callee's locals follow them and are cleared at each call site,
+     * and each return jumps past the inlined body with its value on the stack
+     * a callee that sets pointer 0 or 1 gets THIS or THAT saved and restored around it,
+     * as return would restore them; one that uses static variables is only inlined
+     * within its own file, where they name the same variables
+     * budget is the number of commands inlining may add to the program;
+     * functions whose every call was inlined are dropped from a complete program
+     */
+    static final int MAX_SIZE = 32;
+    private static final String ENTRY = "Sys.init";
+
+    private static class Callee {
+        List<Command> body;
+        int file;
+        int locals;
+        // number of arguments the body reads, one more than its highest argument index
+        int arguments;
+        boolean writesThis;
+        boolean writesThat;
+        boolean usesStatic;
+        int calls;
+        int inlined;
+    }
+
+    private final int budget;
+    private int added;
+    private int sites;
+
+    Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    List<List<Command>> inline(List<List<Command>> program) {
+        HashMap<String, Callee> callees = new HashMap<>();
+        boolean complete = false;
+        for (int file = 0; file < program.size(); file++) {
+            List<Command> commands = program.get(file);
+            for (int i = 0; i < commands.size(); i++) {
+                Command command = commands.get(i);
+                if (command.type() == CommandType.C_FUNCTION) {
+                    complete |= command.arg1().equals(ENTRY);
+                    int end = i + 1;
+                    while (end < commands.size() && commands.get(end).type() != CommandType.C_FUNCTION) {
+                        end++;
+                    }
+                    Callee callee = analyze(commands.subList(i + 1, end), command.arg2());
+                    if (callee != null) {
+                        callee.file = file;
+                        callees.put(command.arg1(), callee);
+                    }
+                    i = end - 1;
+                }
+            }
+        }
+        if (callees.isEmpty()) {
+            return program;
+        }
+        for (List<Command> commands : program) {
+            for (Command command : commands) {
+                Callee callee = command.type() == CommandType.C_CALL ? callees.get(command.arg1()) : null;
+                if (callee != null) {
+                    callee.calls++;
+                }
+            }
+        }
+
+        List<List<Command>> inlined = new ArrayList<>(program.size());
+        for (int file = 0; file < program.size(); file++) {
+            inlined.add(this.inlineFile(program.get(file), file, callees));
+        }
+        if (!complete) {
+            return inlined;
+        }
+        // nothing outside the program calls a function but the bootstrap
+        List<List<Command>> kept = new ArrayList<>(inlined.size());
+        for (List<Command> commands : inlined) {
+            List<Command> keep = new ArrayList<>(commands.size());
+            boolean drop = false;
+            for (Command command : commands) {
+                if (command.type() == CommandType.C_FUNCTION) {
+                    Callee callee = callees.get(command.arg1());
+                    drop = callee != null && callee.calls > 0 && callee.inlined == callee.calls
+                            && !command.arg1().equals(ENTRY);
+                }
+                if (!drop) {
+                    keep.add(command);
+                }
+            }
+            kept.add(keep);
+        }
+        return kept;
+    }
+
+    private static Callee analyze(List<Command> body, int locals) {
+        // null unless body can be inlined
+        if (body.size() > MAX_SIZE || body.isEmpty()) {
+            return null;
+        }
+        Callee callee = new Callee();
+        callee.body = body;
+        callee.locals = locals;
+        HashMap<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            Command command = body.get(i);
+            switch (command.type()) {
+                case CommandType.C_CALL:
+                    return null;
+                case CommandType.C_LABEL:
+                    if (labels.put(command.arg1(), i) != null) {
+                        return null;
+                    }
+                    break;
+                case CommandType.C_ARITHMETIC:
+                    if (command.operator() == null) {
+                        return null;
+                    }
+                    break;
+                case CommandType.C_PUSH:
+                case CommandType.C_POP:
+                    Segment segment = command.segment();
+                    if (segment == null || command.arg2() < 0) {
+                        return null;
+                    }
+                    if (segment == Segment.LOCAL && command.arg2() >= locals) {
+                        return null;
+                    }
+                    if (segment == Segment.ARGUMENT) {
+                        callee.arguments = Math.max(callee.arguments, command.arg2() + 1);
+                    }
+                    if (segment == Segment.STATIC) {
+                        callee.usesStatic = true;
+                    }
+                    if (segment == Segment.POINTER && command.type() == CommandType.C_POP) {
+                        callee.writesThis |= command.arg2() == 0;
+                        callee.writesThat |= command.arg2() == 1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /*
+         * the body must leave exactly its return value above what it found
+         * at every return, along every path, without popping below it;
+         * that is what return leaves to the caller
+         */
+        int[] depths = new int[body.size()];
+        Arrays.fill(depths, -1);
+        ArrayList<Integer> worklist = new ArrayList<>();
+        depths[0] = 0;
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            int i = worklist.remove(worklist.size() - 1);
+            Command command = body.get(i);
+            int depth = depths[i];
+            int next = i + 1;
+            int target = -1;
+            switch (command.type()) {
+                case CommandType.C_PUSH:
+                    depth++;
+                    break;
+                case CommandType.C_POP:
+                    depth--;
+                    break;
+                case CommandType.C_ARITHMETIC:
+                    if (depth < command.operator().arity) {
+                        return null;
+                    }
+                    depth -= command.operator().arity - 1;
+                    break;
+                case CommandType.C_GOTO:
+                    next = -1;
+                    target = labels.getOrDefault(command.arg1(), -2);
+                    break;
+                case CommandType.C_IF:
+                    depth--;
+                    target = labels.getOrDefault(command.arg1(), -2);
+                    break;
+                case CommandType.C_RETURN:
+                    if (depth != 1) {
+                        return null;
+                    }
+                    next = -1;
+                    break;
+                default:
+                    break;
+            }
+            if (depth < 0 || target == -2 || next == body.size()) {
+                // popped below the arguments, jumped out of the body or ran off its end
+                return null;
+            }
+            for (int successor : new int[] { next, target }) {
+                if (successor < 0) {
+                    continue;
+                }
+                if (depths[successor] == -1) {
+                    depths[successor] = depth;
+                    worklist.add(successor);
+                } else if (depths[successor] != depth) {
+                    return null;
+                }
+            }
+        }
+        return callee;
+    }
+
+    private List<Command> inlineFile(List<Command> commands, int file, HashMap<String, Callee> callees) {
+        List<Command> inlined = new ArrayList<>(commands.size());
+        // position in inlined of the caller's function command, and the locals it needs
+        int function = -1;
+        int extra = 0;
+        for (Command command : commands) {
+            if (command.type() == CommandType.C_FUNCTION) {
+                growFrame(inlined, function, extra);
+                function = inlined.size();
+                extra = 0;
+                inlined.add(command);
+                continue;
+            }
+            Callee callee = command.type() == CommandType.C_CALL ? callees.get(command.arg1()) : null;
+            if (function < 0 || callee == null || command.arg2() < callee.arguments
+                    || (callee.usesStatic && callee.file != file)) {
+                inlined.add(command);
+                continue;
+            }
+            int first = inlined.get(function).arg2();
+            int size = inlined.size();
+            int used = this.expand(callee, command.arg2(), first, inlined);
+            int cost = inlined.size() - size - 1;
+            if (this.added + cost > this.budget) {
+                // over budget, keep the call
+                inlined.subList(size, inlined.size()).clear();
+                inlined.add(command);
+                continue;
+            }
+            this.added += cost;
+            extra = Math.max(extra, used);
+            callee.inlined++;
+        }
+        growFrame(inlined, function, extra);
+        return inlined;
+    }
+
+    private static void growFrame(List<Command> inlined, int function, int extra) {
+        if (function >= 0 && extra > 0) {
+            Command command = inlined.get(function);
+            inlined.set(function, new Command(CommandType.C_FUNCTION, command.arg1(), command.arg2() + extra));
+        }
+    }
+
+    private int expand(Callee callee, int arguments, int first, List<Command> out) {
+        // appends the body in place of a call, its frame starting at caller local first
+        // returns the number of caller locals it uses
+        int locals = first + arguments;
+        int saved = locals + callee.locals;
+        // labels of the body get a prefix unique to the call site, and it ends at the bare site label
+        String end = "inline." + this.sites++;
+        String prefix = end + ".";
+        for (int i = arguments - 1; i >= 0; i--) {
+            out.add(new Command(CommandType.C_POP, "local", first + i));
+        }
+        int save = saved;
+        if (callee.writesThis) {
+            out.add(new Command(CommandType.C_PUSH, "pointer", 0));
+            out.add(new Command(CommandType.C_POP, "local", save++));
+        }
+        if (callee.writesThat) {
+            out.add(new Command(CommandType.C_PUSH, "pointer", 1));
+            out.add(new Command(CommandType.C_POP, "local", save++));
+        }
+        // a called function finds its locals cleared
+        for (int i = 0; i < callee.locals; i++) {
+            out.add(new Command(CommandType.C_PUSH, "constant", 0));
+            out.add(new Command(CommandType.C_POP, "local", locals + i));
+        }
+
+        boolean jumpsToEnd = false;
+        for (int i = 0; i < callee.body.size(); i++) {
+            Command command = callee.body.get(i);
+            switch (command.type()) {
+                case CommandType.C_PUSH:
+                case CommandType.C_POP:
+                    if (command.segment() == Segment.ARGUMENT) {
+                        command = new Command(command.type(), "local", first + command.arg2());
+                    } else if (command.segment() == Segment.LOCAL) {
+                        command = new Command(command.type(), "local", locals + command.arg2());
+                    }
+                    break;
+                case CommandType.C_LABEL:
+                case CommandType.C_GOTO:
+                case CommandType.C_IF:
+                    command = new Command(command.type(), prefix + command.arg1(), 0);
+                    break;
+                case CommandType.C_RETURN:
+                    if (i == callee.body.size() - 1) {
+                        continue;
+                    }
+                    command = new Command(CommandType.C_GOTO, end, 0);
+                    jumpsToEnd = true;
+                    break;
+                default:
+                    break;
+            }
+            out.add(command);
+        }
+        if (jumpsToEnd) {
+            out.add(new Command(CommandType.C_LABEL, end, 0));
+        }
+
+        // the return value stays on top while THIS and THAT are restored under it
+        save = saved;
+        if (callee.writesThis) {
+            out.add(new Command(CommandType.C_PUSH, "local", save++));
+            out.add(new Command(CommandType.C_POP, "pointer", 0));
+        }
+        if (callee.writesThat) {
+            out.add(new Command(CommandType.C_PUSH, "local", save++));
+            out.add(new Command(CommandType.C_POP, "pointer", 1));
+        }
+        return save - first;
+    }
+}
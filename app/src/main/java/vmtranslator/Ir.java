@@ -0,0 +1,185 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+class Ir {
+    /*
+     * the commands of a vm file as parallel arrays, ten bytes per command,
+     * for the passes run by PassManager
+     *   opcode   CommandType ordinal
+     *   segment  Segment ordinal of push and pop, -1 elsewhere or if unknown
+     *   operand  index of push and pop, count of function and call,
+     *            Operator ordinal of arithmetic, -1 if unknown
+     *   symbol   label or function name, or the text of an unknown segment
+     *            or operator, as an index in the symbol table; -1 if none
+     * an Ir derived by a pass shares the symbol table of the one it came from
+     */
+    static final byte ARITHMETIC = (byte) CommandType.C_ARITHMETIC.ordinal();
+    static final byte PUSH = (byte) CommandType.C_PUSH.ordinal();
+    static final byte POP = (byte) CommandType.C_POP.ordinal();
+    static final byte LABEL = (byte) CommandType.C_LABEL.ordinal();
+    static final byte GOTO = (byte) CommandType.C_GOTO.ordinal();
+    static final byte IF = (byte) CommandType.C_IF.ordinal();
+    static final byte FUNCTION = (byte) CommandType.C_FUNCTION.ordinal();
+    static final byte RETURN = (byte) CommandType.C_RETURN.ordinal();
+    static final byte CALL = (byte) CommandType.C_CALL.ordinal();
+    private static final CommandType[] TYPES = CommandType.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final Operator[] OPERATORS = Operator.values();
+
+    private byte[] opcodes;
+    private byte[] segments;
+    private int[] operands;
+    private int[] symbols;
+    private int size;
+    private final List<String> names;
+    private final HashMap<String, Integer> nameIds;
+
+    Ir() {
+        this.opcodes = new byte[64];
+        this.segments = new byte[64];
+        this.operands = new int[64];
+        this.symbols = new int[64];
+        this.names = new ArrayList<>();
+        this.nameIds = new HashMap<>();
+    }
+
+    Ir(Ir source) {
+        // empty, with the symbols of source and room for as many commands
+        int capacity = Math.max(16, source.size);
+        this.opcodes = new byte[capacity];
+        this.segments = new byte[capacity];
+        this.operands = new int[capacity];
+        this.symbols = new int[capacity];
+        this.names = source.names;
+        this.nameIds = source.nameIds;
+    }
+
+    static Ir of(List<Command> commands) {
+        Ir ir = new Ir();
+        for (Command command : commands) {
+            ir.add(command);
+        }
+        return ir;
+    }
+
+    void add(Command command) {
+        CommandType type = command.type();
+        int segment = -1;
+        int operand = command.arg2();
+        int symbol = -1;
+        if (type == CommandType.C_ARITHMETIC) {
+            operand = command.operator() != null ? command.operator().ordinal() : -1;
+            if (command.operator() == null) {
+                symbol = this.symbol(command.arg1());
+            }
+        } else if (type == CommandType.C_PUSH || type == CommandType.C_POP) {
+            if (command.segment() != null) {
+                segment = command.segment().ordinal();
+            } else {
+                symbol = this.symbol(command.arg1());
+            }
+        } else if (command.arg1() != null) {
+            symbol = this.symbol(command.arg1());
+        }
+        this.add((byte) type.ordinal(), segment, operand, symbol);
+    }
+
+    void add(byte opcode, int segment, int operand, int symbol) {
+        if (this.size == this.opcodes.length) {
+            int capacity = 2 * this.size;
+            this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+            this.segments = Arrays.copyOf(this.segments, capacity);
+            this.operands = Arrays.copyOf(this.operands, capacity);
+            this.symbols = Arrays.copyOf(this.symbols, capacity);
+        }
+        this.opcodes[this.size] = opcode;
+        this.segments[this.size] = (byte) segment;
+        this.operands[this.size] = operand;
+        this.symbols[this.size] = symbol;
+        this.size++;
+    }
+
+    void copy(Ir from, int i) {
+        // appends command i of from, which shares this symbol table
+        this.add(from.opcodes[i], from.segments[i], from.operands[i], from.symbols[i]);
+    }
+
+    void truncate(int size) {
+        // drops the commands from size on
+        this.size = size;
+    }
+
+    int symbol(String name) {
+        // index of name in the symbol table, added if new
+        Integer id = this.nameIds.get(name);
+        if (id == null) {
+            id = this.names.size();
+            this.names.add(name);
+            this.nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    byte opcode(int i) {
+        return this.opcodes[i];
+    }
+
+    Segment segment(int i) {
+        return this.segments[i] < 0 ? null : SEGMENTS[this.segments[i]];
+    }
+
+    int operand(int i) {
+        return this.operands[i];
+    }
+
+    Operator operator(int i) {
+        // null unless command i is a known arithmetic command
+        return this.opcodes[i] != ARITHMETIC || this.operands[i] < 0 ? null : OPERATORS[this.operands[i]];
+    }
+
+    int symbolId(int i) {
+        return this.symbols[i];
+    }
+
+    String symbol(int i) {
+        return this.symbols[i] < 0 ? null : this.names.get(this.symbols[i]);
+    }
+
+    int functionEnd(int start) {
+        // index of the first function declaration after start, or size
+        int end = start + 1;
+        while (end < this.size && this.opcodes[end] != FUNCTION) {
+            end++;
+        }
+        return Math.min(end, this.size);
+    }
+
+    Command command(int i) {
+        // command i as the parser would have returned it
+        CommandType type = TYPES[this.opcodes[i]];
+        if (type == CommandType.C_ARITHMETIC) {
+            Operator operator = this.operator(i);
+            return new Command(type, operator != null ? operator.text : this.symbol(i), 0);
+        } else if (type == CommandType.C_PUSH || type == CommandType.C_POP) {
+            Segment segment = this.segment(i);
+            return new Command(type, segment != null ? segment.text : this.symbol(i), this.operands[i]);
+        }
+        return new Command(type, this.symbol(i), this.operands[i]);
+    }
+
+    List<Command> commands() {
+        List<Command> commands = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            commands.add(this.command(i));
+        }
+        return commands;
+    }
+}
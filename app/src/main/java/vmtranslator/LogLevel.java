@@ -0,0 +1,8 @@
+package vmtranslator;
+
+public enum LogLevel {
+        // nothing is logged besides errors
+        SILENT,
+        // every emitted assembly snippet is echoed to the trace sink
+        TRACE
+}
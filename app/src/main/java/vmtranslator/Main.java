@@ -3,18 +3,48 @@
  */
 package vmtranslator;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 
 public class Main {
 
     public static void main(String[] args) throws IOException, InvalidCommandException {
-        if (args.length == 0) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        if (options.batch != null) {
+            int failures;
+            try (Translator translator = new Translator(options);
+                    BufferedReader manifest = options.batch.equals("-")
+                            ? new BufferedReader(new InputStreamReader(System.in))
+                            : new BufferedReader(new FileReader(options.batch))) {
+                failures = new Batch(translator, options).run(manifest);
+            }
+            // a failed program fails the run, for scripts and CI
+            if (failures > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (options.path == null) {
             System.out.println("Please provide a file or directory path as argument");
             return;
         }
-        String path = args[0];
+        String path = options.path;
+        if (path.equals("-")) {
+            try (Translator translator = new Translator(options)) {
+                translator.translateStream(new InputStreamReader(System.in), new OutputStreamWriter(System.out));
+            }
+            return;
+        }
         File source = new File(path);
 
         if (!source.exists()) {
@@ -22,96 +52,41 @@ public class Main {
             return;
         }
 
-        if (source.isFile() && isAllowedFile(source)) {
-            String outputFilename = path.substring(0, path.length() - 3) + ".asm";
-            CodeWriter cw = new CodeWriter(outputFilename);
-            processFile(source, cw);
-            cw.close();
-        } else if (source.isDirectory()) {
-            String outputFilename = path + ".asm";
-            CodeWriter cw = new CodeWriter(outputFilename);
-            cw.writeInit();
-            File[] files = source.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (isAllowedFile(file)) {
-                        processFile(file, cw);
-                    }
+        try (Translator translator = new Translator(options)) {
+            if (source.isFile() && Translator.isAllowedFile(source)) {
+                String outputFilename = path.substring(0, path.length() - 3) + options.outputExtension();
+                if (options.watch) {
+                    watch(translator, source, outputFilename);
+                } else {
+                    translator.translateFile(source, outputFilename);
+                    profile(options, outputFilename);
                 }
-            }
-            cw.close();
-
-        } else {
-            System.out.println("Unsupported input. Please provide a valid file or directory");
-            return;
-        }
-    }
-
-    private static void translate(CodeWriter cw, Parser parser)
-            throws NullPointerException, IOException, InvalidCommandException {
-        try {
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-                switch (parser.commandType()) {
-                    case CommandType.C_ARITHMETIC:
-                        cw.writeArithmetic(parser.arg1());
-                        break;
-                    case CommandType.C_PUSH:
-                        cw.writePushPop("push", parser.arg1(), parser.arg2());
-                        break;
-                    case CommandType.C_POP:
-                        cw.writePushPop("pop", parser.arg1(), parser.arg2());
-                        break;
-                    case CommandType.C_LABEL:
-                        cw.writeLabel(parser.arg1());
-                        break;
-                    case CommandType.C_GOTO:
-                        cw.writeGoto(parser.arg1());
-                        break;
-                    case CommandType.C_IF:
-                        cw.writeIf(parser.arg1());
-                        break;
-                    case CommandType.C_FUNCTION:
-                        cw.writeFunction(parser.arg1(), parser.arg2());
-                        break;
-                    case CommandType.C_CALL:
-                        cw.writeCall(parser.arg1(), parser.arg2());
-                        break;
-                    case CommandType.C_RETURN:
-                        cw.writeReturn();
-                        break;
-                    default:
-                        System.out.println("Command not supported. Skipping:" + parser.commandType().toString());
+            } else if (source.isDirectory()) {
+                String outputFilename = path + options.outputExtension();
+                if (options.watch) {
+                    watch(translator, source, outputFilename);
+                } else {
+                    translator.translateDirectory(source, outputFilename);
+                    profile(options, outputFilename);
                 }
+            } else {
+                System.out.println("Unsupported input. Please provide a valid file or directory");
+                return;
             }
-            parser.close();
-        } catch (FileNotFoundException fne) {
-            System.out.print("File not exists");
-            fne.printStackTrace();
-        } finally {
-            parser.close();
         }
     }
 
-    private static boolean isAllowedFile(File file) {
-        String name = file.getName().toLowerCase();
-        if (name.endsWith(".vm")) {
-            return true;
-        } else {
-            return false;
+    private static void profile(Options options, String outputFilename) throws IOException {
+        if (options.profile) {
+            new Profiler(options.profileInstructions).profile(outputFilename);
         }
     }
 
-    private static void processFile(File source, CodeWriter cw) {
-        String sourceFileName = source.getName();
-        String name = sourceFileName.substring(0, sourceFileName.length() - 3);
+    private static void watch(Translator translator, File source, String outputFilename) throws IOException {
         try {
-            cw.setVmFilename(name);
-            Parser parser = new Parser(source);
-            translate(cw, parser);
-        } catch (Exception e) {
-            System.out.println("Exception occured");
-            e.printStackTrace();
+            new Watcher(translator, source, outputFilename).run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
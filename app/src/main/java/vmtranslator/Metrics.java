@@ -0,0 +1,372 @@
+package vmtranslator;
+
+import java.io.FileWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+class Metrics implements MetricsMXBean {
+    /*
+     * where translation time and output size go, per vm file:
+     * time spent parsing, in each optimization pass and generating code, chars of assembly generated,
+     * parsed commands by type and emitted instructions by vm command kind
+     * bytes written are counted at the output files themselves, after --hack assembles them,
+     * so they are only reported in total
+     * collected with --metrics, which writes them as a JSON report and exposes
+     * the totals over JMX, or while a JFR recording has FileTranslated enabled,
+     * which gets one event per translated file
+     */
+    private static final String OBJECT_NAME = "vmtranslator:type=Translation";
+    // where the report goes, "-" for stderr, null for no report
+    private final String report;
+    // by path, in order of first translation; a file translated again adds to its entry
+    private final LinkedHashMap<String, FileMetrics> files = new LinkedHashMap<>();
+    private final FileMetrics total = new FileMetrics("total");
+    private long filesTranslated;
+    private long bytesWritten;
+    private ObjectName registered;
+
+    Metrics(String report) {
+        this.report = report;
+    }
+
+    static class FileMetrics {
+        // filled by one translating thread, then handed to record()
+        final String file;
+        long parseNanos;
+        long codegenNanos;
+        // chars of assembly generated, which --hack turns into more bytes of machine code
+        long asmChars;
+        final long[] commands = new long[CommandType.values().length];
+        final HashMap<String, long[]> instructions = new HashMap<>();
+        // time of each pass, in the order they ran
+        final LinkedHashMap<String, long[]> passNanos = new LinkedHashMap<>();
+
+        FileMetrics(String file) {
+            this.file = file;
+        }
+
+        void command(CommandType type) {
+            this.commands[type.ordinal()]++;
+        }
+
+        void instructions(String kind, long count) {
+            this.instructions.computeIfAbsent(kind, k -> new long[1])[0] += count;
+        }
+
+        void addParsing(FileMetrics parsed) {
+            // counts of the same file parsed on another thread or ahead of translation
+            this.parseNanos += parsed.parseNanos;
+            for (int i = 0; i < this.commands.length; i++) {
+                this.commands[i] += parsed.commands[i];
+            }
+        }
+
+        void pass(String name, long nanos) {
+            this.passNanos.computeIfAbsent(name, k -> new long[1])[0] += nanos;
+        }
+
+        long commandCount() {
+            long count = 0;
+            for (long n : this.commands) {
+                count += n;
+            }
+            return count;
+        }
+
+        long instructionCount() {
+            long count = 0;
+            for (long[] n : this.instructions.values()) {
+                count += n[0];
+            }
+            return count;
+        }
+
+        private void add(FileMetrics other) {
+            this.parseNanos += other.parseNanos;
+            this.codegenNanos += other.codegenNanos;
+            this.asmChars += other.asmChars;
+            for (int i = 0; i < this.commands.length; i++) {
+                this.commands[i] += other.commands[i];
+            }
+            for (Map.Entry<String, long[]> entry : other.instructions.entrySet()) {
+                this.instructions(entry.getKey(), entry.getValue()[0]);
+            }
+            for (Map.Entry<String, long[]> entry : other.passNanos.entrySet()) {
+                this.pass(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+    }
+
+    @Name("vmtranslator.FileTranslated")
+    @Label("VM File Translated")
+    @Category("VM Translator")
+    static class FileTranslated extends Event {
+        @Label("File")
+        String file;
+        @Label("Parse Time")
+        @Timespan
+        long parseTime;
+        @Label("Code Generation Time")
+        @Timespan
+        long codegenTime;
+        @Label("Assembly Chars")
+        long asmChars;
+        @Label("Commands")
+        long commands;
+        @Label("Instructions")
+        long instructions;
+    }
+
+    FileMetrics start(String file) {
+        // null when nothing would use the measurements, so translation is not slowed down
+        if (this.report == null && !recording()) {
+            return null;
+        }
+        return new FileMetrics(file);
+    }
+
+    void record(FileMetrics metrics) {
+        if (recording()) {
+            FileTranslated event = new FileTranslated();
+            event.file = metrics.file;
+            event.parseTime = metrics.parseNanos;
+            event.codegenTime = metrics.codegenNanos;
+            event.asmChars = metrics.asmChars;
+            event.commands = metrics.commandCount();
+            event.instructions = metrics.instructionCount();
+            event.commit();
+        }
+        if (this.report == null) {
+            return;
+        }
+        // files of a directory may be translated on several threads
+        synchronized (this) {
+            this.files.computeIfAbsent(metrics.file, FileMetrics::new).add(metrics);
+            this.total.add(metrics);
+            this.filesTranslated++;
+        }
+    }
+
+    Writer count(Writer out) {
+        // out, adding what reaches it to the bytes written; the output is ASCII, a byte per char
+        return this.report == null ? out : new Counter(out);
+    }
+
+    private class Counter extends FilterWriter {
+        private long count;
+
+        Counter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            this.count++;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int count) throws IOException {
+            super.write(chars, offset, count);
+            this.count += count;
+        }
+
+        @Override
+        public void write(String s, int offset, int count) throws IOException {
+            super.write(s, offset, count);
+            this.count += count;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            super.flush();
+            this.report();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            this.report();
+        }
+
+        private void report() {
+            // counted here rather than on each write, as --hack writes a word at a time
+            synchronized (Metrics.this) {
+                Metrics.this.bytesWritten += this.count;
+            }
+            this.count = 0;
+        }
+    }
+
+    private static boolean recording() {
+        // loading the event class takes longer than translating a small file,
+        // so it is left alone unless JFR was started
+        return FlightRecorder.isInitialized() && new FileTranslated().isEnabled();
+    }
+
+    void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.registered = name;
+        } catch (JMException e) {
+            System.out.println("Could not register metrics");
+            e.printStackTrace();
+        }
+    }
+
+    void unregister() {
+        if (this.registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registered);
+        } catch (JMException e) {
+            System.out.println("Could not unregister metrics");
+            e.printStackTrace();
+        }
+        this.registered = null;
+    }
+
+    void writeReport() throws IOException {
+        if (this.report == null) {
+            return;
+        }
+        if (this.report.equals("-")) {
+            // leave stderr open
+            Writer out = new OutputStreamWriter(System.err);
+            this.writeJson(out);
+            out.flush();
+        } else {
+            try (Writer out = new FileWriter(this.report)) {
+                this.writeJson(out);
+            }
+        }
+    }
+
+    synchronized void writeJson(Writer out) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"files\": [");
+        String separator = "\n";
+        for (FileMetrics file : this.files.values()) {
+            json.append(separator).append("    ");
+            appendJson(json, file, "    ");
+            separator = ",\n";
+        }
+        json.append(this.files.isEmpty() ? "],\n" : "\n  ],\n");
+        json.append("  \"bytes\": ").append(this.bytesWritten).append(",\n");
+        json.append("  \"total\": ");
+        appendJson(json, this.total, "  ");
+        json.append("\n}\n");
+        out.write(json.toString());
+    }
+
+    private static void appendJson(StringBuilder json, FileMetrics metrics, String indent) {
+        json.append("{\n");
+        json.append(indent).append("  \"file\": ");
+        appendString(json, metrics.file);
+        json.append(",\n").append(indent).append("  \"parseMillis\": ").append(millis(metrics.parseNanos));
+        json.append(",\n").append(indent).append("  \"codegenMillis\": ").append(millis(metrics.codegenNanos));
+        if (!metrics.passNanos.isEmpty()) {
+            json.append(",\n").append(indent).append("  \"passMillis\": {");
+            String separator = "";
+            for (Map.Entry<String, long[]> entry : metrics.passNanos.entrySet()) {
+                json.append(separator);
+                appendString(json, entry.getKey());
+                json.append(": ").append(millis(entry.getValue()[0]));
+                separator = ", ";
+            }
+            json.append('}');
+        }
+        json.append(",\n").append(indent).append("  \"asmChars\": ").append(metrics.asmChars);
+        json.append(",\n").append(indent).append("  \"commands\": {");
+        String separator = "";
+        for (CommandType type : CommandType.values()) {
+            long count = metrics.commands[type.ordinal()];
+            if (count > 0) {
+                json.append(separator).append('"').append(type).append("\": ").append(count);
+                separator = ", ";
+            }
+        }
+        json.append("},\n").append(indent).append("  \"instructions\": {");
+        separator = "";
+        for (Map.Entry<String, long[]> entry : new TreeMap<>(metrics.instructions).entrySet()) {
+            json.append(separator);
+            appendString(json, entry.getKey());
+            json.append(": ").append(entry.getValue()[0]);
+            separator = ", ";
+        }
+        json.append("}\n").append(indent).append('}');
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    @Override
+    public synchronized long getFilesTranslated() {
+        return this.filesTranslated;
+    }
+
+    @Override
+    public synchronized long getCommands() {
+        return this.total.commandCount();
+    }
+
+    @Override
+    public synchronized long getInstructions() {
+        return this.total.instructionCount();
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    @Override
+    public synchronized long getAsmChars() {
+        return this.total.asmChars;
+    }
+
+    @Override
+    public synchronized long getParseMillis() {
+        return this.total.parseNanos / 1_000_000;
+    }
+
+    @Override
+    public synchronized long getCodegenMillis() {
+        return this.total.codegenNanos / 1_000_000;
+    }
+}
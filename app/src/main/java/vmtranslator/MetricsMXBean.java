@@ -0,0 +1,21 @@
+package vmtranslator;
+
+public interface MetricsMXBean {
+    /*
+     * totals of every file translated so far, registered as vmtranslator:type=Translation
+     * with --metrics; public as JMX requires
+     */
+    long getFilesTranslated();
+
+    long getCommands();
+
+    long getInstructions();
+
+    long getBytesWritten();
+
+    long getAsmChars();
+
+    long getParseMillis();
+
+    long getCodegenMillis();
+}
@@ -0,0 +1,42 @@
+package vmtranslator;
+
+enum Operator {
+    /*
+     * arithmetic and logical commands, resolved once by the parser
+     * in the same order as the arithmetic keywords of Parser
+     * jump is the condition of the comparisons, null for the others
+     */
+    ADD("add", 2, null),
+    SUB("sub", 2, null),
+    NEG("neg", 1, null),
+    EQ("eq", 2, "JEQ"),
+    GT("gt", 2, "JGT"),
+    LT("lt", 2, "JLT"),
+    AND("and", 2, null),
+    OR("or", 2, null),
+    NOT("not", 1, null);
+
+    final String text;
+    final int arity;
+    final String jump;
+
+    Operator(String text, int arity, String jump) {
+        this.text = text;
+        this.arity = arity;
+        this.jump = jump;
+    }
+
+    boolean isComparison() {
+        return this.jump != null;
+    }
+
+    static Operator of(String text) {
+        // null if text is not an arithmetic command
+        for (Operator operator : values()) {
+            if (operator.text.equals(text)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+}
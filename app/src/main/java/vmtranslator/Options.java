@@ -0,0 +1,169 @@
+package vmtranslator;
+
+import java.util.List;
+
+class Options {
+    /*
+     * command line options of the translator
+     * usage: [--parallel] [--mmap] [--peephole] [--fold | --passes=<pass,...>] [--prune-functions]
+     *        [--inline[=<budget>]] [--tail-calls] [--shared-calls] [--shared-compare] [--top-in-d]
+     *        [--cache[=<directory>]] [--watch] [--hack] [--profile[=<instructions>]] [--pipeline]
+     *        [--metrics[=<file>]]
+     *        [--verbose | --trace=<file>] <file/directory path>
+     *        a path of - translates stdin to stdout
+     *        or, in place of the path, --batch[=<manifest>] to translate every path listed
+     *        one per line in the manifest, or on stdin if none is given
+     */
+    String path;
+    // translate the files of a directory on a worker pool
+    boolean parallel;
+    // parse memory mapped vm files as bytes instead of decoded lines
+    boolean memoryMapped;
+    // fuse common pairs of commands into shorter assembly
+    boolean peephole;
+    // optimization passes run over each file, in order; --fold runs fold,dce:
+    // fold constant arithmetic, then drop unreachable blocks of each function
+    List<String> passes = List.of();
+    // translate only the functions of a directory reachable from Sys.init
+    boolean pruneFunctions;
+    // replace calls to small leaf functions of a directory by their body,
+    // adding at most inlineBudget commands to the program
+    boolean inline;
+    int inlineBudget = 1000;
+    // a call followed by return reuses the current frame instead of building a new one
+    boolean tailCalls;
+    // calls and returns jump to one shared routine instead of being inlined
+    boolean sharedCalls;
+    // eq, gt and lt jump to one shared routine per operator instead of being inlined
+    boolean sharedCompare;
+    // keep the stack top in D within a basic block, writing it to RAM only
+    // before labels, jumps, calls and returns
+    boolean cacheTop;
+    // reuse the translation of unchanged files of a directory from an on disk cache,
+    // kept in <directory>/.vmcache unless cacheDirectory is given
+    boolean cache;
+    String cacheDirectory;
+    // keep running and translate again whenever a vm file changes
+    boolean watch;
+    // write assembled Hack machine code instead of assembly
+    boolean hack;
+    // run the translated program on the emulator and report where instructions are spent,
+    // stopping after profileInstructions if it does not halt before
+    boolean profile;
+    long profileInstructions = 100_000_000;
+    // parse on a reader thread and write output on an I/O thread, overlapping code generation
+    boolean pipeline;
+    // write timings, sizes and command counts of every translated file as JSON
+    // to this file ("-" for stderr) and expose their totals over JMX
+    String metrics;
+    // translate the paths listed in this file ("-" for stdin) instead of path
+    String batch;
+    // TRACE echoes the emitted assembly to stderr, or to traceFile if given
+    LogLevel logLevel = LogLevel.SILENT;
+    String traceFile;
+
+    static Options parse(String[] args) throws IllegalArgumentException {
+        Options options = new Options();
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                options.parallel = true;
+            } else if (arg.equals("--mmap")) {
+                options.memoryMapped = true;
+            } else if (arg.equals("--peephole")) {
+                options.peephole = true;
+            } else if (arg.equals("--fold")) {
+                options.passes = List.of("fold", "dce");
+            } else if (arg.startsWith("--passes=")) {
+                options.passes = List.of(arg.substring("--passes=".length()).split(","));
+                for (String pass : options.passes) {
+                    if (!PassManager.names().contains(pass)) {
+                        throw new IllegalArgumentException("Unknown pass: " + pass + ", known passes are "
+                                + String.join(",", PassManager.names()));
+                    }
+                }
+            } else if (arg.equals("--prune-functions")) {
+                options.pruneFunctions = true;
+            } else if (arg.equals("--inline")) {
+                options.inline = true;
+            } else if (arg.startsWith("--inline=")) {
+                options.inline = true;
+                try {
+                    options.inlineBudget = Integer.parseInt(arg.substring("--inline=".length()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid inline budget: " + arg);
+                }
+            } else if (arg.equals("--tail-calls")) {
+                options.tailCalls = true;
+            } else if (arg.equals("--shared-calls")) {
+                options.sharedCalls = true;
+            } else if (arg.equals("--shared-compare")) {
+                options.sharedCompare = true;
+            } else if (arg.equals("--top-in-d")) {
+                options.cacheTop = true;
+            } else if (arg.equals("--cache")) {
+                options.cache = true;
+            } else if (arg.startsWith("--cache=")) {
+                options.cache = true;
+                options.cacheDirectory = arg.substring("--cache=".length());
+            } else if (arg.equals("--watch")) {
+                options.watch = true;
+            } else if (arg.equals("--hack")) {
+                options.hack = true;
+            } else if (arg.equals("--profile")) {
+                options.profile = true;
+            } else if (arg.startsWith("--profile=")) {
+                options.profile = true;
+                try {
+                    options.profileInstructions = Long.parseLong(arg.substring("--profile=".length()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid instruction limit: " + arg);
+                }
+            } else if (arg.equals("--pipeline")) {
+                options.pipeline = true;
+            } else if (arg.equals("--metrics")) {
+                options.metrics = "-";
+            } else if (arg.startsWith("--metrics=")) {
+                options.metrics = arg.substring("--metrics=".length());
+            } else if (arg.equals("--batch")) {
+                options.batch = "-";
+            } else if (arg.startsWith("--batch=")) {
+                options.batch = arg.substring("--batch=".length());
+            } else if (arg.equals("--verbose")) {
+                options.logLevel = LogLevel.TRACE;
+            } else if (arg.startsWith("--trace=")) {
+                options.logLevel = LogLevel.TRACE;
+                options.traceFile = arg.substring("--trace=".length());
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else if (options.path == null) {
+                options.path = arg;
+            } else {
+                throw new IllegalArgumentException("Only one file or directory path is supported: " + arg);
+            }
+        }
+        if (options.batch != null && options.path != null) {
+            throw new IllegalArgumentException("--batch reads its paths from the manifest: " + options.path);
+        }
+        if (options.batch != null && options.watch) {
+            throw new IllegalArgumentException("--watch is not supported with --batch");
+        }
+        if ("-".equals(options.path) && (options.watch || options.profile)) {
+            throw new IllegalArgumentException("--watch and --profile need a file or directory path");
+        }
+        if (options.profile && (options.hack || options.watch || options.batch != null)) {
+            throw new IllegalArgumentException("--profile is not supported with --hack, --watch or --batch");
+        }
+        return options;
+    }
+
+    String outputExtension() {
+        return this.hack ? ".hack" : ".asm";
+    }
+
+    String codegenKey() {
+        // the options that change the generated assembly of a single file
+        return "peephole=" + this.peephole + " passes=" + String.join(",", this.passes) + " sharedCalls=" + this.sharedCalls
+                + " sharedCompare=" + this.sharedCompare + " cacheTop=" + this.cacheTop + " tailCalls=" + this.tailCalls
+                + " profile=" + this.profile;
+    }
+}
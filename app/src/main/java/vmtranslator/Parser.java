@@ -5,108 +5,266 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 public class Parser {
     // parse each VM command into it's lexical elements
 
     private BufferedReader br;
+    // memory mapped input, scanned byte by byte instead of decoded through br
+    private FileChannel channel;
+    private ByteBuffer bytes;
+    private int position;
+    private byte[] scratch = new byte[64];
     private String currCommand;
+    private boolean hasCommand;
+    private int lineStart;
+    private int lineEnd;
+    // fields of the current command, filled once by advance()
+    private CommandType currType;
+    private String currArg1;
+    private Segment currSegment;
+    private Operator currOperator;
+    private int currArg2;
+    private boolean hasArg2;
+    // start and end of the first three tokens of the current line
+    private final int[] tokenStart = new int[3];
+    private final int[] tokenEnd = new int[3];
+
+    private static final String[] KEYWORDS = {
+            "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+            "push", "pop", "label", "goto", "if-goto", "function", "call", "return" };
+    private static final CommandType[] KEYWORD_TYPES = {
+            CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC,
+            CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC,
+            CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC, CommandType.C_ARITHMETIC,
+            CommandType.C_PUSH, CommandType.C_POP, CommandType.C_LABEL, CommandType.C_GOTO,
+            CommandType.C_IF, CommandType.C_FUNCTION, CommandType.C_CALL, CommandType.C_RETURN };
+    // the arithmetic keywords come first, in the order of Operator
+    private static final Operator[] OPERATORS = Operator.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final String[] SEGMENT_NAMES = new String[SEGMENTS.length];
+
+    static {
+        for (int i = 0; i < SEGMENTS.length; i++) {
+            SEGMENT_NAMES[i] = SEGMENTS[i].text;
+        }
+    }
 
     Parser(File file) throws FileNotFoundException, IOException {
-        this.br = new BufferedReader(new FileReader(file));
+        this(file, false);
+    }
+
+    Parser(File file, boolean memoryMapped) throws FileNotFoundException, IOException {
+        // a memory mapped parser reads the file as ASCII bytes without decoding lines
+        if (memoryMapped) {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.bytes = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+        } else {
+            this.br = new BufferedReader(new FileReader(file));
+        }
+        this.currCommand = null;
+    }
+
+    Parser(Reader in) {
+        // reads commands as they arrive, e.g. from a pipe
+        this.br = new BufferedReader(in);
         this.currCommand = null;
     }
 
     boolean hasMoreCommands() throws IOException {
-        return this.br.ready();
+        // may wait for more input on a stream
+        if (this.bytes != null) {
+            return this.position < this.bytes.limit();
+        }
+        this.br.mark(1);
+        if (this.br.read() < 0) {
+            return false;
+        }
+        this.br.reset();
+        return true;
+    }
+
+    boolean ready() throws IOException {
+        // whether the next line can be read without waiting for input
+        return this.bytes != null || this.br.ready();
     }
 
     void advance() throws IOException {
-        if (this.hasMoreCommands()) {
-            this.currCommand = this.br.readLine().trim().split("//")[0].trim();
-            if (this.currCommand.equals("") || this.currCommand.startsWith("//")) {
-                this.advance();
+        // reads the next non empty line and splits it into its fields
+        while (this.hasMoreCommands()) {
+            boolean found;
+            if (this.bytes != null) {
+                int start = this.position;
+                int end = start;
+                int limit = this.bytes.limit();
+                while (end < limit && this.bytes.get(end) != '\n') {
+                    end++;
+                }
+                this.position = end < limit ? end + 1 : end;
+                found = this.tokenize(start, end);
+            } else {
+                this.currCommand = this.br.readLine();
+                found = this.tokenize(0, this.currCommand.length());
+            }
+            if (found) {
+                return;
             }
-        } else {
-            this.currCommand = null;
         }
+        this.hasCommand = false;
+        this.currType = CommandType.C_EMPTY;
+        this.currArg1 = null;
+        this.currSegment = null;
+        this.currOperator = null;
+        this.hasArg2 = false;
     }
 
-    CommandType commandType() throws InvalidCommandException, NullPointerException {
-        if (this.currCommand == null) {
-            return CommandType.C_EMPTY;
-        }
-        String command = this.currCommand.split(" ")[0].trim();
-        if (this.isCommandArithmetic(command)) {
-            return CommandType.C_ARITHMETIC;
-        } else if (this.isCommandMemoryAccess(command)) {
-            return CommandType.valueOf("C_" + command.toUpperCase());
-        } else if (this.isCommandLabel(command)) {
-            return CommandType.C_LABEL;
-        } else if (this.isCommandGoTo(command)) {
-            return CommandType.C_GOTO;
-        } else if (this.isCommandIfGoto(command)) {
-            return CommandType.C_IF;
-        } else if (this.isCommandFunction(command)) {
-            return CommandType.C_FUNCTION;
-        } else if (this.isCommandCall(command)) {
-            return CommandType.C_CALL;
-        } else if (this.isCommandReturn(command)) {
-            return CommandType.C_RETURN;
-        } else {
-            throw new InvalidCommandException("Not a valid VM command: " + command);
+    private char charAt(int i) {
+        if (this.bytes != null) {
+            return (char) (this.bytes.get(i) & 0xff);
         }
+        return this.currCommand.charAt(i);
     }
 
-    private boolean isCommandArithmetic(String command) {
-        return command.equals("add") || command.equals("sub") ||
-                command.equals("neg") || command.equals("eq") || command.equals("gt") || command.equals("lt")
-                || command.equals("and") || command.equals("or") || command.equals("not");
+    private String text(int start, int end) {
+        if (this.bytes == null) {
+            return this.currCommand.substring(start, end);
+        }
+        int length = end - start;
+        if (this.scratch.length < length) {
+            this.scratch = new byte[length];
+        }
+        this.bytes.get(start, this.scratch, 0, length);
+        return new String(this.scratch, 0, length, StandardCharsets.ISO_8859_1);
     }
 
-    private boolean isCommandMemoryAccess(String command) {
-        return command.equals("pop") || command.equals("push");
-    }
+    private boolean tokenize(int start, int end) {
+        // returns false if the line holds no command
+        int count = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && this.charAt(i) <= ' ') {
+                i++;
+            }
+            if (i == end || this.isCommentAt(i, end)) {
+                break;
+            }
+            int tokenStart = i;
+            while (i < end && this.charAt(i) > ' ' && !this.isCommentAt(i, end)) {
+                i++;
+            }
+            if (count < 3) {
+                this.tokenStart[count] = tokenStart;
+                this.tokenEnd[count] = i;
+            }
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
 
-    private boolean isCommandGoTo(String command) {
-        return command.equals("goto");
+        this.hasCommand = true;
+        this.lineStart = start;
+        this.lineEnd = end;
+        int keyword = this.find(KEYWORDS, this.tokenStart[0], this.tokenEnd[0]);
+        this.currType = keyword < 0 ? null : KEYWORD_TYPES[keyword];
+        this.currArg1 = null;
+        this.currSegment = null;
+        this.currOperator = null;
+        this.hasArg2 = false;
+        if (this.currType == CommandType.C_ARITHMETIC) {
+            this.currArg1 = KEYWORDS[keyword];
+            this.currOperator = OPERATORS[keyword];
+        } else if (count > 1) {
+            int segment = -1;
+            if (this.currType == CommandType.C_PUSH || this.currType == CommandType.C_POP) {
+                segment = this.find(SEGMENT_NAMES, this.tokenStart[1], this.tokenEnd[1]);
+            }
+            if (segment < 0) {
+                this.currArg1 = this.text(this.tokenStart[1], this.tokenEnd[1]);
+            } else {
+                this.currArg1 = SEGMENT_NAMES[segment];
+                this.currSegment = SEGMENTS[segment];
+            }
+        }
+        if (count > 2) {
+            this.parseArg2(this.tokenStart[2], this.tokenEnd[2]);
+        }
+        return true;
     }
 
-    private boolean isCommandLabel(String command) {
-        return command.equals("label");
+    private boolean isCommentAt(int i, int end) {
+        return this.charAt(i) == '/' && i + 1 < end && this.charAt(i + 1) == '/';
     }
 
-    private boolean isCommandIfGoto(String command) {
-        return command.equals("if-goto");
+    private int find(String[] words, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            if (word.length() != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && word.charAt(j) == this.charAt(start + j)) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private boolean isCommandFunction(String command) {
-        return command.equals("function");
+    private void parseArg2(int start, int end) {
+        boolean negative = this.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 9) {
+            return;
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            char c = this.charAt(i);
+            if (c < '0' || c > '9') {
+                return;
+            }
+            value = value * 10 + (c - '0');
+        }
+        this.currArg2 = negative ? -value : value;
+        this.hasArg2 = true;
     }
 
-    private boolean isCommandCall(String command) {
-        return command.equals("call");
+    private String commandText() {
+        // text of the current command without comment and surrounding spaces
+        return this.text(this.lineStart, this.lineEnd).split("//")[0].trim();
     }
 
-    private boolean isCommandReturn(String command) {
-        return command.equals("return");
+    CommandType commandType() throws InvalidCommandException, NullPointerException {
+        if (!this.hasCommand) {
+            return CommandType.C_EMPTY;
+        }
+        if (this.currType == null) {
+            String command = this.text(this.tokenStart[0], this.tokenEnd[0]);
+            throw new InvalidCommandException("Not a valid VM command: " + command);
+        }
+        return this.currType;
     }
 
     String arg1() throws InvalidCommandException {
         // returns first argument of curr command
         // returns the command itself for C_ARITHMETIC
         // should not be called for C_RETURN
-        CommandType cmt;
-        try {
-            cmt = this.commandType();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw e;
-        }
+        CommandType cmt = this.commandType();
         if (cmt.equals(CommandType.C_ARITHMETIC)) {
-            return this.currCommand;
+            return this.currArg1;
         } else if (this.commandSupportArg1()) {
-            return this.currCommand.split(" ")[1];
+            if (this.currArg1 == null) {
+                throw new InvalidCommandException("Missing first argument: " + this.commandText());
+            }
+            return this.currArg1;
         } else {
             throw new InvalidCommandException("arg1 not supported for this command type: " + cmt);
         }
@@ -128,16 +286,37 @@ public class Parser {
                 || cmt.equals(CommandType.C_PUSH)
                 || cmt.equals(CommandType.C_FUNCTION)
                 || cmt.equals(CommandType.C_CALL)) {
-            return Integer.parseInt(this.currCommand.split(" ")[2].trim());
+            if (!this.hasArg2) {
+                throw new InvalidCommandException("Missing or invalid second argument: " + this.commandText());
+            }
+            return this.currArg2;
         } else {
             throw new InvalidCommandException("CommandType:" + cmt.toString() + " does not have arg2");
         }
 
     }
 
+    Command command() throws InvalidCommandException {
+        // returns the current command with its arguments
+        CommandType cmt = this.commandType();
+        String arg1 = null;
+        int arg2 = 0;
+        if (cmt != CommandType.C_RETURN && cmt != CommandType.C_EMPTY) {
+            arg1 = this.arg1();
+        }
+        if (cmt == CommandType.C_PUSH || cmt == CommandType.C_POP
+                || cmt == CommandType.C_FUNCTION || cmt == CommandType.C_CALL) {
+            arg2 = this.arg2();
+        }
+        return new Command(cmt, arg1, arg2, this.currSegment, this.currOperator);
+    }
+
     void close() throws IOException {
         if (this.br != null) {
             this.br.close();
         }
+        if (this.channel != null) {
+            this.channel.close();
+        }
     }
 }
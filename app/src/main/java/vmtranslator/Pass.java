@@ -0,0 +1,11 @@
+package vmtranslator;
+
+interface Pass {
+    /*
+     * one optimization over the commands of a vm file, run by PassManager
+     * returns the rewritten commands, which may be ir itself
+     */
+    String name();
+
+    Ir run(Ir ir);
+}
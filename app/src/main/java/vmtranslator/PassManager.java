@@ -0,0 +1,47 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+class PassManager {
+    /*
+     * runs the passes chosen with --passes (--fold is fold,dce) over the Ir of a
+     * vm file in the order given, timing each one into the file's metrics
+     */
+    private static final LinkedHashMap<String, Supplier<Pass>> PASSES = new LinkedHashMap<>();
+
+    static {
+        PASSES.put("fold", FoldPass::new);
+        PASSES.put("dce", DeadBlockPass::new);
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+
+    PassManager(List<String> names) {
+        for (String name : names) {
+            Supplier<Pass> pass = PASSES.get(name);
+            if (pass == null) {
+                throw new IllegalArgumentException("Unknown pass: " + name);
+            }
+            this.passes.add(pass.get());
+        }
+    }
+
+    static Set<String> names() {
+        return PASSES.keySet();
+    }
+
+    Ir run(Ir ir, Metrics.FileMetrics metrics) {
+        for (Pass pass : this.passes) {
+            long start = metrics != null ? System.nanoTime() : 0;
+            ir = pass.run(ir);
+            if (metrics != null) {
+                metrics.pass(pass.name(), System.nanoTime() - start);
+            }
+        }
+        return ir;
+    }
+}
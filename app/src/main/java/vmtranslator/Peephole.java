@@ -0,0 +1,83 @@
+package vmtranslator;
+
+import java.io.IOException;
+
+class Peephole {
+    /*
+     * sits between Parser and CodeWriter and looks at two commands at a time
+     * a push followed by
+     *   add/sub (constant only) -> applied to the stack top in place
+     *   pop                     -> value moved through D, stack untouched
+     *   if-goto                 -> value tested in D, stack untouched
+     * and, with tail calls, a call followed by return -> tail call reusing the frame
+     * any other pair is written as it is
+     */
+    private final CodeWriter cw;
+    // off when the peephole only runs for tail calls
+    private boolean fusePushes = true;
+    private boolean tailCalls;
+    // push or call waiting to be fused with the next command
+    private Command pending;
+
+    Peephole(CodeWriter cw) {
+        this.cw = cw;
+    }
+
+    void setFusePushes(boolean fusePushes) {
+        this.fusePushes = fusePushes;
+    }
+
+    void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    void write(Command command) throws IOException, InvalidCommandException {
+        if (this.pending != null && this.fuse(this.pending, command)) {
+            this.pending = null;
+            return;
+        }
+        this.flush();
+        if ((command.type() == CommandType.C_PUSH && this.fusePushes)
+                || (command.type() == CommandType.C_CALL && this.tailCalls)) {
+            this.pending = command;
+        } else {
+            this.cw.writeCommand(command);
+        }
+    }
+
+    void flush() throws IOException, InvalidCommandException {
+        // writes the command held back for fusing, at the end of a file
+        if (this.pending != null) {
+            Command command = this.pending;
+            this.pending = null;
+            this.cw.writeCommand(command);
+        }
+    }
+
+    private boolean fuse(Command first, Command next) throws InvalidCommandException {
+        if (first.type() == CommandType.C_CALL) {
+            if (next.type() != CommandType.C_RETURN) {
+                return false;
+            }
+            this.cw.writeTailCall(first.arg1(), first.arg2());
+            return true;
+        }
+        switch (next.type()) {
+            case CommandType.C_ARITHMETIC:
+                if (first.segment() == Segment.CONSTANT
+                        && (next.operator() == Operator.ADD || next.operator() == Operator.SUB)) {
+                    this.cw.writeConstantArithmetic(first.arg2(), next.operator());
+                    return true;
+                }
+                return false;
+            case CommandType.C_POP:
+                this.cw.writeMove(first.segment(), first.arg2(), next.segment(), next.arg2());
+                return true;
+            case CommandType.C_IF:
+                this.cw.writePushIf(first.segment(), first.arg2(), next.arg1());
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package vmtranslator;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Profiler {
+    /*
+     * --profile: assembles the translated program, runs it on HackEmulator and
+     * reports the executed instructions per vm function, per call site and per
+     * command kind, using the markers CodeWriter writes in profile mode
+     * a call site counts the instructions of the call sequence itself, not of the callee
+     */
+    private final long maxInstructions;
+
+    Profiler(long maxInstructions) {
+        this.maxInstructions = maxInstructions;
+    }
+
+    void profile(String asmFilename) throws IOException {
+        try (Reader asm = new FileReader(asmFilename)) {
+            System.out.print(this.profile(asm));
+        }
+    }
+
+    String profile(Reader asm) throws IOException {
+        // returns the report
+        HackAssembler assembler = new HackAssembler(Writer.nullWriter());
+        asm.transferTo(assembler);
+        assembler.close();
+        HackEmulator emulator = new HackEmulator(assembler.rom());
+        long start = System.nanoTime();
+        long executed = emulator.run(this.maxInstructions);
+        long nanos = System.nanoTime() - start;
+
+        int[] origins = assembler.origins();
+        long[] counts = emulator.counts();
+        List<String> markers = assembler.markers();
+        // instructions, and executions of the first instruction, of each marker
+        long[] instructions = new long[markers.size()];
+        long[] entries = new long[markers.size()];
+        boolean[] entered = new boolean[markers.size()];
+        long unmarked = 0;
+        for (int pc = 0; pc < counts.length; pc++) {
+            int origin = origins[pc];
+            if (origin < 0) {
+                unmarked += counts[pc];
+                continue;
+            }
+            instructions[origin] += counts[pc];
+            if (!entered[origin]) {
+                entered[origin] = true;
+                entries[origin] = counts[pc];
+            }
+        }
+
+        HashMap<String, Long> byFunction = new HashMap<>();
+        HashMap<String, Long> byCommand = new HashMap<>();
+        HashMap<String, long[]> bySite = new HashMap<>();
+        for (int i = 0; i < markers.size(); i++) {
+            // kind function [callee site], function is empty outside of any function
+            String[] fields = markers.get(i).split(" ", -1);
+            byFunction.merge(fields[1].isEmpty() ? "(no function)" : fields[1], instructions[i], Long::sum);
+            byCommand.merge(fields[0], instructions[i], Long::sum);
+            if (fields.length == 4) {
+                long[] site = bySite.computeIfAbsent(fields[3] + " -> " + fields[2], s -> new long[2]);
+                site[0] += entries[i];
+                site[1] += instructions[i];
+            }
+        }
+        if (unmarked > 0) {
+            byFunction.put("(unmarked)", unmarked);
+            byCommand.put("(unmarked)", unmarked);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("executed ").append(executed).append(" instructions of ").append(counts.length)
+                .append(" in ROM, ").append(emulator.halted() ? "halted" : "stopped before halting")
+                .append(String.format(" (%.2f ms)%n", nanos / 1e6));
+        report.append(String.format("%nby function%n%14s %7s  %s%n", "instructions", "share", "function"));
+        for (Map.Entry<String, Long> entry : sorted(byFunction)) {
+            report.append(String.format("%14d %6.2f%%  %s%n", entry.getValue(),
+                    100.0 * entry.getValue() / Math.max(1, executed), entry.getKey()));
+        }
+        report.append(String.format("%nby call site%n%10s %14s  %s%n", "calls", "instructions", "site"));
+        List<Map.Entry<String, long[]>> sites = new ArrayList<>(bySite.entrySet());
+        sites.sort((x, y) -> x.getValue()[1] != y.getValue()[1]
+                ? Long.compare(y.getValue()[1], x.getValue()[1])
+                : x.getKey().compareTo(y.getKey()));
+        for (Map.Entry<String, long[]> entry : sites) {
+            report.append(String.format("%10d %14d  %s%n", entry.getValue()[0], entry.getValue()[1], entry.getKey()));
+        }
+        report.append(String.format("%nby command%n%14s %7s  %s%n", "instructions", "share", "command"));
+        for (Map.Entry<String, Long> entry : sorted(byCommand)) {
+            report.append(String.format("%14d %6.2f%%  %s%n", entry.getValue(),
+                    100.0 * entry.getValue() / Math.max(1, executed), entry.getKey()));
+        }
+        return report.toString();
+    }
+
+    private static List<Map.Entry<String, Long>> sorted(HashMap<String, Long> totals) {
+        // most instructions first, ties by name so reports can be compared
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(totals.entrySet());
+        entries.sort((x, y) -> !x.getValue().equals(y.getValue())
+                ? Long.compare(y.getValue(), x.getValue())
+                : x.getKey().compareTo(y.getKey()));
+        return entries;
+    }
+}
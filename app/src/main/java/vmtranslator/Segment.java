@@ -0,0 +1,39 @@
+package vmtranslator;
+
+enum Segment {
+    /*
+     * memory segments of push and pop, resolved once by the parser
+     * base is the symbol of the base pointer for local/argument/this/that
+     */
+    LOCAL("local", "LCL"),
+    ARGUMENT("argument", "ARG"),
+    THIS("this", "THIS"),
+    THAT("that", "THAT"),
+    TEMP("temp", null),
+    CONSTANT("constant", null),
+    POINTER("pointer", null),
+    STATIC("static", null);
+
+    final String text;
+    final String base;
+
+    Segment(String text, String base) {
+        this.text = text;
+        this.base = base;
+    }
+
+    boolean isPointer() {
+        // addressed through a base pointer
+        return this.base != null;
+    }
+
+    static Segment of(String text) {
+        // null if text is not a segment
+        for (Segment segment : values()) {
+            if (segment.text.equals(text)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+class TranslationCache {
+    /*
+     * on disk cache of translated vm files
+     * an entry is keyed by a SHA-256 hash of the options that change the generated
+     * code, the file name (static symbols are named after it) and the file content
+     * it holds the function scope the file ends in, followed by its assembly
+     */
+    private static final String FORMAT = "vmcache 3";
+    private final Path directory;
+    private final String optionsKey;
+
+    TranslationCache(Path directory, String optionsKey) throws IOException {
+        this.directory = directory;
+        this.optionsKey = optionsKey;
+        Files.createDirectories(directory);
+    }
+
+    String key(File source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+        digest.update((FORMAT + "\n" + this.optionsKey + "\n" + source.getName() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        digest.update(Files.readAllBytes(source.toPath()));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    Translator.Fragment lookup(String key) throws IOException {
+        // null if there is no entry for key
+        Path entry = this.directory.resolve(key + ".asm");
+        if (!Files.exists(entry)) {
+            return null;
+        }
+        String content = Files.readString(entry);
+        int headerEnd = content.indexOf('\n');
+        if (headerEnd < 0) {
+            return null;
+        }
+        String[] header = content.substring(0, headerEnd).split(" ");
+        CodeWriter.Scope scope = null;
+        if (header[0].equals("scope") && header.length == 4) {
+            scope = new CodeWriter.Scope(header[3], Integer.parseInt(header[1]), Integer.parseInt(header[2]));
+        } else if (!header[0].equals("noscope")) {
+            return null;
+        }
+        return new Translator.Fragment(content.substring(headerEnd + 1), false, scope, true);
+    }
+
+    void store(String key, Translator.Fragment fragment) throws IOException {
+        // written to a temporary file first, so a reader never sees half an entry
+        CodeWriter.Scope scope = fragment.scope();
+        String header = scope == null
+                ? "noscope"
+                : "scope " + scope.callCount() + " " + scope.compareCount() + " " + scope.function();
+        Path temporary = Files.createTempFile(this.directory, key, ".tmp");
+        Files.writeString(temporary, header + "\n" + fragment.assembly());
+        Files.move(temporary, this.directory.resolve(key + ".asm"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
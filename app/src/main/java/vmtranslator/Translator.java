@@ -0,0 +1,567 @@
+package vmtranslator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class Translator implements Closeable {
+    /*
+     * drives Parser and CodeWriter over a vm file or a directory of vm files
+     */
+    // commands parsed ahead of code generation with --pipeline
+    private static final int RING_CAPACITY = 1024;
+    private final Options options;
+    private final Writer traceSink;
+    // buffer of the output file written by each thread, kept across outputs
+    private final ThreadLocal<AsmBuffer> outputBuffer = ThreadLocal.withInitial(() -> new AsmBuffer(null));
+    private final Metrics metrics;
+    // parse measurements of files read ahead by a whole program pass, by path,
+    // until processFile records them with the file's translation
+    private final ConcurrentHashMap<String, Metrics.FileMetrics> parsed = new ConcurrentHashMap<>();
+
+    Translator(Options options) throws IOException {
+        this.options = options;
+        this.metrics = new Metrics(options.metrics);
+        if (options.metrics != null) {
+            this.metrics.register();
+        }
+        if (options.logLevel != LogLevel.TRACE) {
+            this.traceSink = null;
+        } else if (options.traceFile != null) {
+            this.traceSink = new BufferedWriter(new FileWriter(options.traceFile));
+        } else {
+            this.traceSink = new BufferedWriter(new OutputStreamWriter(System.err));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.metrics.writeReport();
+        this.metrics.unregister();
+        if (this.traceSink == null) {
+            return;
+        }
+        if (this.options.traceFile != null) {
+            this.traceSink.close();
+        } else {
+            // leave stderr open
+            this.traceSink.flush();
+        }
+    }
+
+    CodeWriter newCodeWriter(Writer out) {
+        return this.configure(new CodeWriter(out));
+    }
+
+    private CodeWriter configure(CodeWriter cw) {
+        // applies the options that shape the generated code
+        cw.setLogLevel(this.options.logLevel, this.traceSink);
+        cw.setSharedCallReturn(this.options.sharedCalls);
+        cw.setSharedCompare(this.options.sharedCompare);
+        cw.setCacheTop(this.options.cacheTop);
+        cw.setTailCalls(this.options.tailCalls);
+        cw.setProfile(this.options.profile);
+        return cw;
+    }
+
+    Writer openOutput(String outputFilename) throws IOException {
+        return this.openOutput(new FileWriter(outputFilename));
+    }
+
+    private Writer openOutput(Writer out) {
+        // assembly is assembled on its way out with --hack, and counted after that
+        out = this.metrics.count(out);
+        return this.options.hack ? new HackAssembler(out) : out;
+    }
+
+    private CodeWriter newCodeWriter(String outputFilename) throws IOException {
+        Writer out = this.openOutput(outputFilename);
+        if (this.options.pipeline) {
+            // blocks of output are written on their own thread
+            out = new AsyncWriter(out);
+        }
+        return this.configure(new CodeWriter(this.outputBuffer.get().reset(out)));
+    }
+
+    boolean translateFile(File source, String outputFilename) throws IOException {
+        // returns false if translation stopped at an error
+        CodeWriter cw = this.newCodeWriter(outputFilename);
+        this.writeHeader(cw, false);
+        boolean complete = this.processFile(source, null, cw);
+        cw.close();
+        return complete;
+    }
+
+    boolean translateDirectory(File source, String outputFilename) throws IOException {
+        // returns false if translation of any file stopped at an error
+        CodeWriter cw = this.newCodeWriter(outputFilename);
+        this.writeHeader(cw, true);
+        File[] files = vmFiles(source);
+        List<List<Command>> program = this.readProgram(files);
+        TranslationCache cache = this.openCache(source);
+        boolean complete = true;
+        if (cache != null || (this.options.parallel && files.length > 1)) {
+            complete = this.translateFragments(files, program, cache, cw);
+        } else {
+            for (int i = 0; i < files.length; i++) {
+                complete &= this.processFile(files[i], program == null ? null : program.get(i), cw);
+            }
+        }
+        cw.close();
+        return complete;
+    }
+
+    void translateStream(Reader in, Writer out) throws IOException {
+        /*
+         * translates vm commands as they arrive on in, writing the assembly of each
+         * to out before waiting for more input, so memory use does not grow with the input
+         * static variables are named after the class of the enclosing function, the
+         * part of its name before the dot, as if every class came from its own file
+         * with optimization passes the whole input is read before anything is written
+         */
+        CodeWriter cw = this.newCodeWriter(this.openOutput(out));
+        this.writeHeader(cw, false);
+        Parser parser = new Parser(in);
+        Peephole peephole = this.newPeephole(cw);
+        try {
+            cw.setVmFilename("Stdin");
+            if (!this.options.passes.isEmpty()) {
+                Ir ir = new PassManager(this.options.passes).run(readIr(parser, null), null);
+                for (int i = 0; i < ir.size(); i++) {
+                    this.writeStreamed(ir.command(i), cw, peephole);
+                }
+            } else {
+                while (parser.hasMoreCommands()) {
+                    parser.advance();
+                    this.writeStreamed(parser.command(), cw, peephole);
+                    if (!parser.ready()) {
+                        cw.flush();
+                    }
+                }
+            }
+            if (peephole != null) {
+                peephole.flush();
+            }
+            cw.spillTop();
+        } catch (InvalidCommandException e) {
+            // stdout carries the assembly, so errors go to stderr
+            System.err.println(e.getMessage());
+        } finally {
+            parser.close();
+            cw.close();
+        }
+    }
+
+    private void writeStreamed(Command command, CodeWriter cw, Peephole peephole)
+            throws IOException, InvalidCommandException {
+        if (command.type() == CommandType.C_FUNCTION) {
+            if (peephole != null) {
+                peephole.flush();
+            }
+            int dot = command.arg1().indexOf('.');
+            cw.setVmFilename(dot > 0 ? command.arg1().substring(0, dot) : command.arg1());
+        }
+        if (command.type() != CommandType.C_EMPTY) {
+            write(command, cw, peephole, null);
+        }
+    }
+
+    void writeMetrics() throws IOException {
+        // the report so far, for a translator that keeps running
+        this.metrics.writeReport();
+    }
+
+    void writeHeader(CodeWriter cw, boolean bootstrap) {
+        // code written once per output, ahead of the translated files
+        if (this.options.sharedCalls || this.options.sharedCompare) {
+            cw.writeSharedRoutines();
+        }
+        if (bootstrap) {
+            cw.writeInit();
+        }
+    }
+
+    List<List<Command>> readProgram(File[] files) {
+        // commands of each file, when a whole program pass needs them up front
+        // null if files are to be parsed as they are translated
+        if (!this.options.pruneFunctions && !this.options.inline) {
+            return null;
+        }
+        List<List<Command>> program = this.readCommands(files);
+        if (this.options.pruneFunctions) {
+            program = new FunctionPruner().prune(program);
+        }
+        if (this.options.inline) {
+            program = new Inliner(this.options.inlineBudget).inline(program);
+        }
+        return program;
+    }
+
+    private TranslationCache openCache(File directory) throws IOException {
+        // a pruned or inlined file depends on the whole program, not only on its own content
+        if (!this.options.cache || this.options.pruneFunctions || this.options.inline) {
+            return null;
+        }
+        Path cacheDirectory = this.options.cacheDirectory != null
+                ? Path.of(this.options.cacheDirectory)
+                : directory.toPath().resolve(".vmcache");
+        return new TranslationCache(cacheDirectory, this.options.codegenKey());
+    }
+
+    private boolean translateFragments(File[] files, List<List<Command>> program, TranslationCache cache,
+            CodeWriter cw) throws IOException {
+        /*
+         * every file is translated into its own buffer, on a worker pool with --parallel,
+         * unless an unchanged translation of it is in the cache
+         * buffers are then appended in directory order, so the output is the same
+         * as translating the files one after another
+         */
+        ExecutorService pool = null;
+        if (this.options.parallel && files.length > 1) {
+            int threads = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads);
+        }
+        try {
+            List<Future<Fragment>> fragments = new ArrayList<>();
+            String[] keys = new String[files.length];
+            boolean[] cached = new boolean[files.length];
+            for (int i = 0; i < files.length; i++) {
+                File file = files[i];
+                List<Command> commands = program == null ? null : program.get(i);
+                Fragment fragment = null;
+                if (cache != null) {
+                    keys[i] = cache.key(file);
+                    fragment = cache.lookup(keys[i]);
+                    cached[i] = fragment != null;
+                }
+                if (fragment == null && pool != null) {
+                    fragments.add(pool.submit(() -> this.translateFragment(file, commands)));
+                } else {
+                    if (fragment == null) {
+                        fragment = this.translateFragment(file, commands);
+                    }
+                    fragments.add(CompletableFuture.completedFuture(fragment));
+                }
+            }
+            boolean complete = true;
+            for (int i = 0; i < files.length; i++) {
+                Fragment fragment = fragments.get(i).get();
+                complete &= this.appendFragment(cw, files[i], program == null ? null : program.get(i), fragment);
+                if (cache != null && !cached[i] && !fragment.usedPriorScope() && fragment.complete()) {
+                    cache.store(keys[i], fragment);
+                }
+            }
+            return complete;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Translation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Translation failed", e.getCause());
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    boolean appendFragment(CodeWriter cw, File source, List<Command> commands, Fragment fragment)
+            throws IOException {
+        // returns false if translation of the file stopped at an error
+        if (fragment.usedPriorScope()) {
+            // file has commands before its first function, which are scoped
+            // by the previous file: redo it in order
+            return this.processFile(source, commands, cw);
+        }
+        cw.append(fragment.assembly());
+        cw.continueScope(fragment.scope());
+        return fragment.complete();
+    }
+
+    Fragment translateFragment(File source, List<Command> commands) throws IOException {
+        StringWriter buffer = new StringWriter();
+        CodeWriter cw = this.newCodeWriter(buffer);
+        boolean complete = this.processFile(source, commands, cw);
+        cw.close();
+        return new Fragment(buffer.toString(), cw.usedPriorScope(), cw.scope(), complete);
+    }
+
+    record Fragment(String assembly, boolean usedPriorScope, CodeWriter.Scope scope, boolean complete) {
+        // assembly of one vm file translated on its own; complete is false if translation failed
+    }
+
+    static File[] vmFiles(File directory) {
+        List<File> vmFiles = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (isAllowedFile(file)) {
+                    vmFiles.add(file);
+                }
+            }
+        }
+        return vmFiles.toArray(new File[0]);
+    }
+
+    static boolean isAllowedFile(File file) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".vm")) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void translate(CodeWriter cw, Parser parser, Metrics.FileMetrics metrics)
+            throws NullPointerException, IOException, InvalidCommandException {
+        try {
+            if (!this.options.passes.isEmpty()) {
+                // the passes need all commands of a file at once
+                this.translate(cw, readIr(parser, metrics), metrics);
+                return;
+            }
+            if (this.options.pipeline) {
+                this.translatePipelined(cw, parser, metrics);
+                return;
+            }
+            Peephole peephole = this.newPeephole(cw);
+            Command command;
+            while ((command = next(parser, metrics)) != null) {
+                write(command, cw, peephole, metrics);
+            }
+            flush(peephole, metrics);
+            parser.close();
+        } catch (FileNotFoundException fne) {
+            System.out.print("File not exists");
+            fne.printStackTrace();
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void translatePipelined(CodeWriter cw, Parser parser, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        /*
+         * --pipeline: a reader thread parses into a ring of commands while this thread
+         * writes the commands taken from it, so parsing and code generation overlap
+         * commands come out in order, and an error of the parser is thrown here
+         * after the commands before it are written, as without the pipeline
+         */
+        CommandRing ring = new CommandRing(RING_CAPACITY);
+        // the reader measures parsing on its own, merged once it has stopped
+        Metrics.FileMetrics parsing = metrics != null ? new Metrics.FileMetrics(metrics.file) : null;
+        Thread reader = new Thread(() -> {
+            try {
+                Command command;
+                while ((command = next(parser, parsing)) != null) {
+                    if (!ring.put(command)) {
+                        return;
+                    }
+                }
+                ring.close();
+            } catch (Exception e) {
+                ring.fail(e);
+            }
+        }, "vm-parser");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            Peephole peephole = this.newPeephole(cw);
+            Command command;
+            while ((command = ring.take()) != null) {
+                write(command, cw, peephole, metrics);
+            }
+            ring.rethrowFailure();
+            flush(peephole, metrics);
+        } finally {
+            // lets the reader stop if code generation failed, and waits for it,
+            // so the parser is not closed while it is still reading
+            ring.cancel();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Translation interrupted", e);
+            }
+            if (metrics != null) {
+                metrics.addParsing(parsing);
+            }
+        }
+    }
+
+    private void translate(CodeWriter cw, List<Command> commands, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        if (!this.options.passes.isEmpty()) {
+            this.translate(cw, Ir.of(commands), metrics);
+            return;
+        }
+        Peephole peephole = this.newPeephole(cw);
+        for (Command command : commands) {
+            write(command, cw, peephole, metrics);
+        }
+        flush(peephole, metrics);
+    }
+
+    private void translate(CodeWriter cw, Ir ir, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        // runs the passes, then lowers what is left to CodeWriter
+        ir = new PassManager(this.options.passes).run(ir, metrics);
+        Peephole peephole = this.newPeephole(cw);
+        for (int i = 0; i < ir.size(); i++) {
+            write(ir.command(i), cw, peephole, metrics);
+        }
+        flush(peephole, metrics);
+    }
+
+    private static Ir readIr(Parser parser, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        Ir ir = new Ir();
+        Command command;
+        while ((command = next(parser, metrics)) != null) {
+            ir.add(command);
+        }
+        return ir;
+    }
+
+    private static void readCommands(Parser parser, List<Command> commands, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        Command command;
+        while ((command = next(parser, metrics)) != null) {
+            commands.add(command);
+        }
+    }
+
+    private static Command next(Parser parser, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        // the next parsed command, null at the end of the input
+        long start = metrics != null ? System.nanoTime() : 0;
+        Command command = null;
+        if (parser.hasMoreCommands()) {
+            parser.advance();
+            // advance skips empty lines, so only lines after the last command leave C_EMPTY
+            if (parser.commandType() != CommandType.C_EMPTY) {
+                command = parser.command();
+            }
+        }
+        if (metrics != null) {
+            metrics.parseNanos += System.nanoTime() - start;
+            if (command != null) {
+                metrics.command(command.type());
+            }
+        }
+        return command;
+    }
+
+    private List<List<Command>> readCommands(File[] files) {
+        // a file that fails to parse keeps the commands read up to the error
+        List<List<Command>> program = new ArrayList<>();
+        for (File file : files) {
+            List<Command> commands = new ArrayList<>();
+            Metrics.FileMetrics metrics = this.metrics.start(file.getPath());
+            if (metrics != null) {
+                // recorded with the translation of the file, by processFile
+                this.parsed.put(file.getPath(), metrics);
+            }
+            try {
+                Parser parser = new Parser(file, this.options.memoryMapped);
+                try {
+                    readCommands(parser, commands, metrics);
+                } finally {
+                    parser.close();
+                }
+            } catch (Exception e) {
+                System.out.println("Exception occured");
+                e.printStackTrace();
+            }
+            program.add(commands);
+        }
+        return program;
+    }
+
+    private Peephole newPeephole(CodeWriter cw) {
+        // null if no pair of commands is fused
+        if (!this.options.peephole && !this.options.tailCalls) {
+            return null;
+        }
+        Peephole peephole = new Peephole(cw);
+        peephole.setFusePushes(this.options.peephole);
+        peephole.setTailCalls(this.options.tailCalls);
+        return peephole;
+    }
+
+    private static void write(Command command, CodeWriter cw, Peephole peephole, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (peephole != null) {
+            peephole.write(command);
+        } else {
+            cw.writeCommand(command);
+        }
+        if (metrics != null) {
+            metrics.codegenNanos += System.nanoTime() - start;
+        }
+    }
+
+    private static void flush(Peephole peephole, Metrics.FileMetrics metrics)
+            throws IOException, InvalidCommandException {
+        if (peephole == null) {
+            return;
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        peephole.flush();
+        if (metrics != null) {
+            metrics.codegenNanos += System.nanoTime() - start;
+        }
+    }
+
+    private boolean processFile(File source, List<Command> commands, CodeWriter cw) {
+        // commands is null unless the file was read ahead by a whole program pass
+        // returns false if translation stopped at an error
+        String sourceFileName = source.getName();
+        String name = sourceFileName.substring(0, sourceFileName.length() - 3);
+        Metrics.FileMetrics metrics = this.metrics.start(source.getPath());
+        Metrics.FileMetrics parsed = commands != null ? this.parsed.remove(source.getPath()) : null;
+        if (metrics != null && parsed != null) {
+            metrics.addParsing(parsed);
+        }
+        long written = cw.written();
+        cw.setMetrics(metrics);
+        try {
+            cw.setVmFilename(name);
+            if (commands != null) {
+                this.translate(cw, commands, metrics);
+            } else {
+                Parser parser = new Parser(source, this.options.memoryMapped);
+                this.translate(cw, parser, metrics);
+            }
+            // the next file starts with the whole stack in RAM
+            cw.spillTop();
+            return true;
+        } catch (Exception e) {
+            System.out.println("Exception occured");
+            e.printStackTrace();
+            return false;
+        } finally {
+            cw.setMetrics(null);
+            if (metrics != null) {
+                metrics.asmChars = cw.written() - written;
+                this.metrics.record(metrics);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+class Watcher {
+    /*
+     * --watch: translates the input, then keeps running and translates again
+     * whenever a vm file changes
+     * only changed files are parsed again, the others are reused from memory
+     * (with --prune-functions or --inline every file is, as the result depends on all of them)
+     * the output file is replaced atomically, so a reader never sees half of it
+     */
+    // wait for more events of the same save before translating
+    private static final long SETTLE_MILLIS = 50;
+    private final Translator translator;
+    private final File source;
+    private final String outputFilename;
+    // translation of each vm file by name
+    private HashMap<String, Translator.Fragment> fragments = new HashMap<>();
+
+    Watcher(Translator translator, File source, String outputFilename) {
+        this.translator = translator;
+        this.source = source;
+        this.outputFilename = outputFilename;
+    }
+
+    void run() throws IOException, InterruptedException {
+        this.update(null);
+        Path watched = this.source.isDirectory()
+                ? this.source.toPath()
+                : this.source.getAbsoluteFile().getParentFile().toPath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            watched.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            System.out.println("Watching " + watched + " for changes");
+            while (true) {
+                Set<String> changed = new HashSet<>();
+                WatchKey key = watchService.take();
+                boolean valid = this.collect(key, changed);
+                while (valid && (key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    valid = this.collect(key, changed);
+                }
+                if (!valid) {
+                    System.out.println("Stopped watching, " + watched + " is no longer accessible");
+                    return;
+                }
+                if (!changed.isEmpty()) {
+                    this.update(changed);
+                }
+            }
+        }
+    }
+
+    private boolean collect(WatchKey key, Set<String> changed) {
+        // adds the names of changed vm files; false if the key is no longer valid
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, treat every file as changed
+                this.fragments.clear();
+                changed.add("");
+                continue;
+            }
+            File file = new File(event.context().toString());
+            if (Translator.isAllowedFile(file)
+                    && (this.source.isDirectory() || file.getName().equals(this.source.getName()))) {
+                changed.add(file.getName());
+            }
+        }
+        return key.reset();
+    }
+
+    private File[] files() {
+        if (this.source.isDirectory()) {
+            return Translator.vmFiles(this.source);
+        }
+        return this.source.exists() ? new File[] { this.source } : new File[0];
+    }
+
+    private void update(Set<String> changed) throws IOException {
+        // changed is null for the first translation
+        File[] files = this.files();
+        List<List<Command>> program = this.translator.readProgram(files);
+        HashMap<String, Translator.Fragment> current = new HashMap<>();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            Translator.Fragment fragment = null;
+            if (program == null && changed != null && !changed.contains(name)) {
+                fragment = this.fragments.get(name);
+            }
+            if (fragment == null) {
+                fragment = this.translator.translateFragment(files[i], program == null ? null : program.get(i));
+            }
+            current.put(name, fragment);
+        }
+        this.fragments = current;
+
+        Path output = Path.of(this.outputFilename).toAbsolutePath();
+        Path temporary = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".tmp");
+        try {
+            CodeWriter cw = this.translator.newCodeWriter(this.translator.openOutput(temporary.toString()));
+            this.translator.writeHeader(cw, this.source.isDirectory());
+            for (int i = 0; i < files.length; i++) {
+                this.translator.appendFragment(cw, files[i], program == null ? null : program.get(i),
+                        current.get(files[i].getName()));
+            }
+            cw.close();
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        System.out.println("Translated " + this.outputFilename
+                + (changed == null ? "" : " (" + changed.size() + " changed)"));
+        this.translator.writeMetrics();
+    }
+}
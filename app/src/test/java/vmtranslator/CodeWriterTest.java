@@ -27,10 +27,9 @@ public class CodeWriterTest {
         String expected =
         """
         // push argument 2
-        @2
-        D=A
         @ARG
-        A=D+M
+        A=M+1
+        A=A+1
         D=M
         @SP
         A=M
@@ -134,4 +133,171 @@ public class CodeWriterTest {
         File file = new File(outFilename);
         file.delete();
     }
+
+    @Test
+    void testPeepholeMovesPushPopThroughD() throws IOException, InvalidCommandException {
+        // setup
+        String outFilename = "test_move.asm";
+        CodeWriter cw = new CodeWriter(outFilename);
+        Peephole peephole = new Peephole(cw);
+        peephole.write(new Command(CommandType.C_PUSH, "constant", 7));
+        peephole.write(new Command(CommandType.C_POP, "temp", 2));
+        peephole.write(new Command(CommandType.C_PUSH, "constant", 1));
+        peephole.write(new Command(CommandType.C_ARITHMETIC, "add", 0));
+        peephole.flush();
+        cw.close();
+        String expected =
+        """
+        // push constant 7
+        // pop temp 2
+        @7
+        D=A
+        @7
+        M=D
+        // push constant 1
+        // add
+        @1
+        D=A
+        @SP
+        A=M-1
+        M=D+M
+        """;
+        String actual = Files.readString(Paths.get(outFilename));
+        assertEquals(expected, actual);
+
+        // teardown
+        File file = new File(outFilename);
+        file.delete();
+    }
+
+    @Test
+    void testComparisonLabelsAreUnique() throws IOException, InvalidCommandException {
+        // setup
+        String outFilename = "test_compare.asm";
+        CodeWriter cw = new CodeWriter(outFilename);
+        cw.writeFunction("Main.f", 0);
+        cw.writeArithmetic("eq");
+        cw.writeArithmetic("lt");
+        cw.close();
+        String actual = Files.readString(Paths.get(outFilename));
+        for (String label : new String[] { "(Main.f$TRUE.0)", "(Main.f$END.0)", "(Main.f$TRUE.1)", "(Main.f$END.1)" }) {
+            assertEquals(actual.indexOf(label), actual.lastIndexOf(label), label);
+            assertTrue(actual.contains(label), label);
+        }
+
+        // shared comparisons jump to a routine and come back to a numbered label
+        cw = new CodeWriter(outFilename);
+        cw.setSharedCompare(true);
+        cw.writeFunction("Main.f", 0);
+        cw.writeArithmetic("gt");
+        cw.close();
+        String expected =
+        """
+        // label
+        (Main.f)
+        // gt
+        @Main.f$cmp.0
+        D=A
+        @__vm_gt
+        0;JMP
+        (Main.f$cmp.0)
+        """;
+        assertEquals(expected, Files.readString(Paths.get(outFilename)));
+
+        // teardown
+        File file = new File(outFilename);
+        file.delete();
+    }
+
+    @Test
+    void testCachedTopStaysInD() throws IOException, InvalidCommandException {
+        // setup
+        String outFilename = "test_cache_top.asm";
+        CodeWriter cw = new CodeWriter(outFilename);
+        cw.setCacheTop(true);
+        cw.writePush(Segment.CONSTANT, 7);
+        cw.writePush(Segment.LOCAL, 2);
+        cw.writeArithmetic(Operator.ADD);
+        cw.writePop(Segment.TEMP, 1);
+        cw.writePush(Segment.CONSTANT, 1);
+        cw.close();
+        // the first value is written to RAM only when the second is pushed;
+        // the last one when the writer is closed
+        String expected =
+        """
+        // push constant 7
+        @7
+        D=A
+        @SP
+        A=M
+        M=D
+        @SP
+        M=M+1
+        // push local 2
+        @LCL
+        A=M+1
+        A=A+1
+        D=M
+        // add
+        @SP
+        AM=M-1
+        D=D+M
+        // pop temp 1
+        @6
+        M=D
+        // push constant 1
+        @1
+        D=A
+        @SP
+        A=M
+        M=D
+        @SP
+        M=M+1
+        """;
+        assertEquals(expected, Files.readString(Paths.get(outFilename)));
+
+        // teardown
+        File file = new File(outFilename);
+        file.delete();
+    }
+
+    @Test
+    void testSmallIndexPopChainsAddress() throws IOException, InvalidCommandException {
+        // setup
+        String outFilename = "test_pop_small.asm";
+        CodeWriter cw = new CodeWriter(outFilename);
+        cw.writePop(Segment.LOCAL, 0);
+        cw.writePop(Segment.THAT, 8);
+        cw.close();
+        // index 8 is shorter through the computed address
+        String expected =
+        """
+        // pop local 0
+        @SP
+        AM=M-1
+        D=M
+        @LCL
+        A=M
+        M=D
+        // pop that 8
+        @8
+        D=A
+        @THAT
+        D=D+M
+        @address
+        M=D
+        @SP
+        M=M-1
+        A=M
+        D=M
+        @address
+        A=M
+        M=D
+        """;
+        assertEquals(expected, Files.readString(Paths.get(outFilename)));
+
+        // teardown
+        File file = new File(outFilename);
+        file.delete();
+    }
 }
@@ -0,0 +1,53 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class FunctionPrunerTest {
+    private static Command function(String name) {
+        return new Command(CommandType.C_FUNCTION, name, 0);
+    }
+
+    private static Command call(String name) {
+        return new Command(CommandType.C_CALL, name, 0);
+    }
+
+    private static final Command RETURN = new Command(CommandType.C_RETURN, null, 0);
+
+    @Test
+    void testFunctionsNotReachableFromSysInitAreDropped() {
+        List<Command> sys = List.of(function("Sys.init"), call("Main.used"), RETURN);
+        List<Command> main = List.of(
+                function("Main.used"), call("Main.helper"), RETURN,
+                function("Main.unused"), call("Main.helper"), RETURN,
+                function("Main.helper"), RETURN);
+        List<List<Command>> pruned = new FunctionPruner().prune(List.of(sys, main));
+
+        assertEquals(sys, pruned.get(0));
+        assertEquals(List.of(
+                function("Main.used"), call("Main.helper"), RETURN,
+                function("Main.helper"), RETURN), pruned.get(1));
+    }
+
+    @Test
+    void testFunctionsCalledBeforeTheFirstFunctionAreKept() {
+        List<Command> sys = List.of(function("Sys.init"), RETURN);
+        List<Command> main = List.of(
+                call("Main.setup"),
+                function("Main.setup"), call("Main.helper"), RETURN,
+                function("Main.helper"), RETURN,
+                function("Main.unused"), RETURN);
+        List<List<Command>> pruned = new FunctionPruner().prune(List.of(sys, main));
+
+        assertEquals(main.subList(0, 6), pruned.get(1));
+    }
+
+    @Test
+    void testProgramWithoutSysInitIsKept() {
+        List<Command> main = List.of(function("Main.main"), RETURN, function("Main.unused"), RETURN);
+        assertEquals(List.of(main), new FunctionPruner().prune(List.of(main)));
+    }
+}
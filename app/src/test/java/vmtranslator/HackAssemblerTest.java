@@ -0,0 +1,62 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+public class HackAssemblerTest {
+    private static String assemble(String asm) throws IOException {
+        StringWriter out = new StringWriter();
+        HackAssembler assembler = new HackAssembler(out);
+        assembler.write(asm);
+        assembler.close();
+        return out.toString();
+    }
+
+    @Test
+    void testForwardLabelsAreBackPatched() throws IOException {
+        String hack = assemble("""
+                @END // jump ahead
+                0;JMP
+                (END)
+                @END
+                0;JMP
+                """);
+        assertEquals("""
+                0000000000000010
+                1110101010000111
+                0000000000000010
+                1110101010000111
+                """, hack);
+    }
+
+    @Test
+    void testVariablesAllocatedInOrderOfFirstUse() throws IOException {
+        String hack = assemble("""
+                @b
+                M=D
+                @a
+                D=D+M
+                @b
+                @SP
+                AM=M-1
+                """);
+        assertEquals("""
+                0000000000010000
+                1110001100001000
+                0000000000010001
+                1111000010010000
+                0000000000010000
+                0000000000000000
+                1111110010101000
+                """, hack);
+    }
+
+    @Test
+    void testDuplicateLabelFails() {
+        assertThrows(IOException.class, () -> assemble("(X)\n(X)\n"));
+    }
+}
@@ -0,0 +1,82 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+public class HackEmulatorTest {
+    private static short[] assemble(String asm) throws IOException {
+        HackAssembler assembler = new HackAssembler(new StringWriter());
+        assembler.write(asm);
+        assembler.close();
+        return assembler.rom();
+    }
+
+    @Test
+    void testRunsUntilHalt() throws IOException {
+        // RAM[16] = 1 + 2 + ... + 10
+        HackEmulator emulator = new HackEmulator(assemble("""
+                @10
+                D=A
+                @i
+                M=D
+                (LOOP)
+                @i
+                D=M
+                @sum
+                M=D+M
+                @i
+                MD=M-1
+                @LOOP
+                D;JGT
+                (END)
+                @END
+                0;JMP
+                """));
+        long executed = emulator.run(1000);
+        assertTrue(emulator.halted());
+        assertEquals(55, emulator.ram()[17]);
+        assertEquals(0, emulator.ram()[16]);
+        // loop body of 8 instructions runs 10 times
+        assertEquals(10, emulator.counts()[4]);
+        assertEquals(4 + 8 * 10 + 2, executed);
+    }
+
+    @Test
+    void testStopsAtInstructionLimit() throws IOException {
+        HackEmulator emulator = new HackEmulator(assemble("""
+                (LOOP)
+                @SP
+                M=M+1
+                @LOOP
+                0;JMP
+                """));
+        assertEquals(100, emulator.run(100));
+        assertFalse(emulator.halted());
+        assertEquals(25, emulator.ram()[0]);
+    }
+
+    @Test
+    void testProfileAttributesInstructionsToFunctions() throws IOException, InvalidCommandException {
+        StringWriter asm = new StringWriter();
+        CodeWriter cw = new CodeWriter(asm);
+        cw.setProfile(true);
+        cw.setVmFilename("Sys");
+        cw.writeInit();
+        cw.writeCommand(new Command(CommandType.C_FUNCTION, "Sys.init", 0));
+        cw.writeCommand(new Command(CommandType.C_PUSH, "constant", 7));
+        cw.writeCommand(new Command(CommandType.C_POP, "static", 0));
+        cw.writeCommand(new Command(CommandType.C_LABEL, "HALT", 0));
+        cw.writeCommand(new Command(CommandType.C_GOTO, "HALT", 0));
+        cw.close();
+        String report = new Profiler(10000).profile(new StringReader(asm.toString()));
+        assertTrue(report.contains("halted"));
+        assertTrue(report.contains("BootstrapCode$ret.0 -> Sys.init"));
+        // push constant is 7 instructions, pop static 6 and the halting goto 2
+        assertTrue(report.matches("(?s).*\\s15 +\\d+\\.\\d+%  Sys\\.init\\n.*"), report);
+    }
+}
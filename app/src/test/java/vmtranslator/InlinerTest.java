@@ -0,0 +1,100 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class InlinerTest {
+    private static Command function(String name, int locals) {
+        return new Command(CommandType.C_FUNCTION, name, locals);
+    }
+
+    private static Command call(String name, int arguments) {
+        return new Command(CommandType.C_CALL, name, arguments);
+    }
+
+    private static Command push(String segment, int index) {
+        return new Command(CommandType.C_PUSH, segment, index);
+    }
+
+    private static Command pop(String segment, int index) {
+        return new Command(CommandType.C_POP, segment, index);
+    }
+
+    private static final Command RETURN = new Command(CommandType.C_RETURN, null, 0);
+
+    @Test
+    void testGetterIsInlinedAndDropped() {
+        List<Command> sys = List.of(
+                function("Sys.init", 1),
+                push("constant", 3000), call("Point.getX", 1), pop("local", 0),
+                RETURN);
+        // a Jack method: this is its first argument
+        List<Command> point = List.of(
+                function("Point.getX", 0),
+                push("argument", 0), pop("pointer", 0), push("this", 0),
+                RETURN);
+        List<List<Command>> inlined = new Inliner(100).inline(List.of(sys, point));
+
+        // the argument and the saved THIS take two locals after the caller's own
+        assertEquals(List.of(
+                function("Sys.init", 3),
+                push("constant", 3000),
+                pop("local", 1),
+                push("pointer", 0), pop("local", 2),
+                push("local", 1), pop("pointer", 0), push("this", 0),
+                push("local", 2), pop("pointer", 0),
+                pop("local", 0),
+                RETURN), inlined.get(0));
+        assertEquals(List.of(), inlined.get(1));
+    }
+
+    @Test
+    void testLabelsAndReturnsOfTheBodyAreRenamed() {
+        List<Command> main = List.of(
+                function("Main.main", 0), push("constant", 5), call("Main.abs", 1), RETURN,
+                function("Main.abs", 1),
+                push("argument", 0), pop("local", 0),
+                push("local", 0), push("constant", 0), new Command(CommandType.C_ARITHMETIC, "lt", 0),
+                new Command(CommandType.C_IF, "NEG", 0),
+                push("local", 0), RETURN,
+                new Command(CommandType.C_LABEL, "NEG", 0),
+                push("local", 0), new Command(CommandType.C_ARITHMETIC, "neg", 0), RETURN);
+        List<Command> inlined = new Inliner(100).inline(List.of(main)).get(0);
+
+        // not a complete program, so Main.abs is kept for other callers
+        assertEquals(main.subList(4, main.size()), inlined.subList(inlined.size() - 13, inlined.size()));
+        assertEquals(List.of(
+                function("Main.main", 2),
+                push("constant", 5),
+                pop("local", 0),
+                push("constant", 0), pop("local", 1),
+                push("local", 0), pop("local", 1),
+                push("local", 1), push("constant", 0), new Command(CommandType.C_ARITHMETIC, "lt", 0),
+                new Command(CommandType.C_IF, "inline.0.NEG", 0),
+                push("local", 1), new Command(CommandType.C_GOTO, "inline.0", 0),
+                new Command(CommandType.C_LABEL, "inline.0.NEG", 0),
+                push("local", 1), new Command(CommandType.C_ARITHMETIC, "neg", 0),
+                new Command(CommandType.C_LABEL, "inline.0", 0),
+                RETURN), inlined.subList(0, inlined.size() - 13));
+    }
+
+    @Test
+    void testCallsThatCannotBeInlinedAreKept() {
+        List<Command> sys = List.of(
+                function("Sys.init", 0),
+                call("Main.calls", 0), call("Main.counter", 0), call("Main.big", 0),
+                RETURN);
+        List<Command> main = List.of(
+                function("Main.calls", 0), push("constant", 0), call("Main.calls", 0), RETURN,
+                // static 0 of Main.vm has no name in Sys.vm
+                function("Main.counter", 0), push("static", 0), RETURN,
+                // inlining it would add more than the budget
+                function("Main.big", 0), push("constant", 1), push("constant", 2),
+                new Command(CommandType.C_ARITHMETIC, "add", 0), RETURN);
+        List<List<Command>> program = List.of(sys, main);
+        assertEquals(program, new Inliner(1).inline(program));
+    }
+}
@@ -0,0 +1,45 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class IrTest {
+    @Test
+    void testCommandsSurviveTheRoundTrip() {
+        List<Command> commands = List.of(
+                new Command(CommandType.C_FUNCTION, "Main.f", 2),
+                new Command(CommandType.C_PUSH, "argument", 1),
+                new Command(CommandType.C_ARITHMETIC, "lt", 0),
+                new Command(CommandType.C_IF, "LOOP", 0),
+                new Command(CommandType.C_LABEL, "LOOP", 0),
+                new Command(CommandType.C_CALL, "Math.abs", 1),
+                // unknown segments are kept for CodeWriter to report
+                new Command(CommandType.C_POP, "nowhere", 3),
+                new Command(CommandType.C_RETURN, null, 0));
+        Ir ir = Ir.of(commands);
+        assertEquals(commands, ir.commands());
+        assertEquals(Ir.IF, ir.opcode(3));
+        assertEquals(ir.symbolId(3), ir.symbolId(4));
+        assertEquals(Operator.LT, ir.operator(2));
+        assertNull(ir.segment(6));
+    }
+
+    @Test
+    void testPassesRunInTheOrderGiven() {
+        Command push = new Command(CommandType.C_PUSH, "constant", 0);
+        Command skip = new Command(CommandType.C_IF, "SKIP", 0);
+        Command label = new Command(CommandType.C_LABEL, "SKIP", 0);
+        Command ret = new Command(CommandType.C_RETURN, null, 0);
+        List<Command> commands = List.of(push, skip, ret, label, ret);
+        // dce alone keeps both paths of the if-goto on a constant
+        assertEquals(commands, new PassManager(List.of("dce")).run(Ir.of(commands), null).commands());
+        // once fold drops the if-goto, the labelled block is no longer reached
+        assertEquals(List.of(ret), new PassManager(List.of("fold", "dce")).run(Ir.of(commands), null).commands());
+        Metrics.FileMetrics metrics = new Metrics.FileMetrics("Main.vm");
+        new PassManager(List.of("fold", "dce")).run(Ir.of(commands), metrics);
+        assertEquals(List.of("fold", "dce"), List.copyOf(metrics.passNanos.keySet()));
+    }
+}
@@ -221,4 +221,124 @@ public class ParserTest {
         // teardown
         pathname.delete();
     }
+
+    @Test
+    void testParserForCommandsWithRepeatedWhitespace() throws Exception {
+        File pathname = new File("./whitespace_cmds.vm");
+        // setup
+        BufferedWriter writer = new BufferedWriter(new FileWriter(pathname));
+        writer.write("  push \tlocal   4  // comment");
+        writer.newLine();
+        writer.write("\tcall  Main.run\t2");
+        writer.close();
+
+        // test
+        Parser myParser = new Parser(pathname);
+        myParser.advance();
+        assertEquals(myParser.commandType(), CommandType.C_PUSH);
+        assertEquals(myParser.arg1(), "local");
+        assertEquals(myParser.arg2(), 4);
+        myParser.advance();
+        assertEquals(myParser.commandType(), CommandType.C_CALL);
+        assertEquals(myParser.arg1(), "Main.run");
+        assertEquals(myParser.arg2(), 2);
+        myParser.close();
+
+        // teardown
+        pathname.delete();
+    }
+
+    @Test
+    void testInvalidCommandIsReported() throws Exception {
+        File pathname = new File("./invalid_cmds.vm");
+        // setup
+        BufferedWriter writer = new BufferedWriter(new FileWriter(pathname));
+        writer.write("jump somewhere");
+        writer.close();
+
+        // test
+        Parser myParser = new Parser(pathname);
+        myParser.advance();
+        assertThrows(InvalidCommandException.class, () -> myParser.commandType());
+        myParser.close();
+
+        // teardown
+        pathname.delete();
+    }
+
+    @Test
+    void testMemoryMappedParserMatchesReader() throws Exception {
+        File pathname = new File("./mapped_cmds.vm");
+        // setup
+        BufferedWriter writer = new BufferedWriter(new FileWriter(pathname));
+        writer.write("// comment only");
+        writer.newLine();
+        writer.write("function Main.main 2\r");
+        writer.newLine();
+        writer.newLine();
+        writer.write("  push constant 17 // seventeen");
+        writer.newLine();
+        writer.write("lt");
+        writer.newLine();
+        writer.write("if-goto END");
+        writer.close();
+
+        // test
+        Parser reader = new Parser(pathname);
+        Parser mapped = new Parser(pathname, true);
+        while (reader.hasMoreCommands()) {
+            assertTrue(mapped.hasMoreCommands());
+            reader.advance();
+            mapped.advance();
+            CommandType cmt = reader.commandType();
+            assertEquals(cmt, mapped.commandType());
+            if (cmt != CommandType.C_RETURN && cmt != CommandType.C_EMPTY) {
+                assertEquals(reader.arg1(), mapped.arg1());
+            }
+            if (cmt == CommandType.C_FUNCTION || cmt == CommandType.C_PUSH) {
+                assertEquals(reader.arg2(), mapped.arg2());
+            }
+        }
+        assertFalse(mapped.hasMoreCommands());
+        reader.close();
+        mapped.close();
+
+        // teardown
+        pathname.delete();
+    }
+
+    @Test
+    void testCommandCarriesSegmentAndOperator() throws Exception {
+        File pathname = new File("./interned_cmds.vm");
+        // setup
+        BufferedWriter writer = new BufferedWriter(new FileWriter(pathname));
+        writer.write("pop that 3");
+        writer.newLine();
+        writer.write("gt");
+        writer.newLine();
+        writer.write("push heap 1");
+        writer.close();
+
+        // test
+        Parser myParser = new Parser(pathname);
+        myParser.advance();
+        Command pop = myParser.command();
+        assertEquals(Segment.THAT, pop.segment());
+        assertEquals(null, pop.operator());
+        myParser.advance();
+        Command gt = myParser.command();
+        assertEquals(Operator.GT, gt.operator());
+        assertEquals(null, gt.segment());
+        myParser.advance();
+        // an unknown segment is kept as text and rejected by CodeWriter
+        Command heap = myParser.command();
+        assertEquals("heap", heap.arg1());
+        assertEquals(null, heap.segment());
+        myParser.close();
+        // built from text, a command resolves the same values
+        assertEquals(pop, new Command(CommandType.C_POP, "that", 3));
+
+        // teardown
+        pathname.delete();
+    }
 }
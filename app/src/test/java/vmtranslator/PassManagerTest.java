@@ -0,0 +1,67 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class PassManagerTest {
+    private static Command push(int value) {
+        return new Command(CommandType.C_PUSH, "constant", value);
+    }
+
+    private static Command op(String command) {
+        return new Command(CommandType.C_ARITHMETIC, command, 0);
+    }
+
+    private static Command branch(CommandType type, String label) {
+        return new Command(type, label, 0);
+    }
+
+    private static List<Command> optimize(List<Command> commands) {
+        // the passes of --fold
+        return new PassManager(List.of("fold", "dce")).run(Ir.of(commands), null).commands();
+    }
+
+    @Test
+    void testConstantArithmeticIsFolded() {
+        List<Command> commands = List.of(
+                new Command(CommandType.C_FUNCTION, "Main.f", 0),
+                push(3), push(4), op("add"), push(9), op("sub"),
+                new Command(CommandType.C_RETURN, null, 0));
+        List<Command> expected = List.of(
+                new Command(CommandType.C_FUNCTION, "Main.f", 0),
+                push(2), op("neg"),
+                new Command(CommandType.C_RETURN, null, 0));
+        assertEquals(expected, optimize(commands));
+    }
+
+    @Test
+    void testComparisonFollowsSixteenBitSubtraction() {
+        // 32767 - (-1) overflows, so the generated gt is false
+        List<Command> commands = List.of(push(32767), push(1), op("neg"), op("gt"));
+        assertEquals(List.of(push(0)), optimize(commands));
+    }
+
+    @Test
+    void testUnreachableBlocksAreDropped() {
+        List<Command> commands = List.of(
+                new Command(CommandType.C_FUNCTION, "Main.f", 0),
+                push(0),
+                branch(CommandType.C_IF, "SKIP"),
+                branch(CommandType.C_GOTO, "END"),
+                branch(CommandType.C_LABEL, "SKIP"),
+                push(1),
+                branch(CommandType.C_LABEL, "END"),
+                new Command(CommandType.C_RETURN, null, 0),
+                push(5),
+                new Command(CommandType.C_RETURN, null, 0));
+        List<Command> expected = List.of(
+                new Command(CommandType.C_FUNCTION, "Main.f", 0),
+                branch(CommandType.C_GOTO, "END"),
+                branch(CommandType.C_LABEL, "END"),
+                new Command(CommandType.C_RETURN, null, 0));
+        assertEquals(expected, optimize(commands));
+    }
+}
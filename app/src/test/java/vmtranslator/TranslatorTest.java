@@ -0,0 +1,331 @@
+package vmtranslator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+public class TranslatorTest {
+    private static Path writeProgram() throws IOException {
+        Path dir = Files.createTempDirectory("prog");
+        Files.writeString(dir.resolve("Sys.vm"), """
+                function Sys.init 0
+                push constant 3
+                call Main.max 1
+                pop static 0
+                label HALT
+                goto HALT
+                """);
+        Files.writeString(dir.resolve("Main.vm"), """
+                function Main.max 0
+                push argument 0
+                push constant 2
+                gt
+                if-goto BIG
+                push constant 2
+                return
+                label BIG
+                push argument 0
+                return
+                """);
+        // commands before the first function are scoped by the previous file
+        Files.writeString(dir.resolve("Loose.vm"), """
+                push constant 1
+                push constant 1
+                eq
+                function Loose.f 0
+                push constant 0
+                return
+                """);
+        return dir;
+    }
+
+    private static String translateDirectory(Path dir, Options options) throws IOException {
+        String outputFilename = dir + ".asm";
+        new Translator(options).translateDirectory(dir.toFile(), outputFilename);
+        String asm = Files.readString(Path.of(outputFilename));
+        new File(outputFilename).delete();
+        return asm;
+    }
+
+    @Test
+    void testParallelOutputMatchesSerial() throws IOException {
+        Path dir = writeProgram();
+        String serial = translateDirectory(dir, Options.parse(new String[] {}));
+        String parallel = translateDirectory(dir, Options.parse(new String[] { "--parallel" }));
+        assertEquals(serial, parallel);
+
+        // teardown
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testCachedOutputMatchesUncached() throws IOException {
+        Path dir = writeProgram();
+        Path cacheDir = Files.createTempDirectory("vmcache");
+        String uncached = translateDirectory(dir, Options.parse(new String[] {}));
+        Options cached = Options.parse(new String[] { "--cache=" + cacheDir });
+        // first run fills the cache, second run reads from it
+        assertEquals(uncached, translateDirectory(dir, cached));
+        assertTrue(cacheDir.toFile().listFiles().length > 0);
+        assertEquals(uncached, translateDirectory(dir, cached));
+
+        // teardown
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+        for (File file : cacheDir.toFile().listFiles()) {
+            file.delete();
+        }
+        cacheDir.toFile().delete();
+    }
+
+    @Test
+    void testBatchContinuesAfterFailure() throws IOException {
+        Path dir = writeProgram();
+        Path bad = Files.createTempFile("Bad", ".vm");
+        Files.writeString(bad, "push nowhere\n");
+        String manifest = bad + "\n" + dir + "/does-not-exist\n\n" + dir + "\n";
+        Options options = Options.parse(new String[] {});
+        int failed = new Batch(new Translator(options), options)
+                .run(new BufferedReader(new StringReader(manifest)));
+        assertEquals(2, failed);
+        // the program listed after the failures is still translated
+        File output = new File(dir + ".asm");
+        String batched = Files.readString(output.toPath());
+        output.delete();
+        assertEquals(translateDirectory(dir, Options.parse(new String[] {})), batched);
+
+        // teardown
+        new File(bad.toString().replace(".vm", ".asm")).delete();
+        bad.toFile().delete();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testStreamMatchesFile() throws IOException {
+        Path dir = writeProgram();
+        File main = dir.resolve("Main.vm").toFile();
+        Options options = Options.parse(new String[] { "--peephole" });
+        Translator translator = new Translator(options);
+        String outputFilename = dir.resolve("Main.asm").toString();
+        translator.translateFile(main, outputFilename);
+        StringWriter streamed = new StringWriter();
+        translator.translateStream(new StringReader(Files.readString(main.toPath())), streamed);
+        assertEquals(Files.readString(Path.of(outputFilename)), streamed.toString());
+
+        // teardown
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testPipelineMatchesSerial() throws IOException, JMException {
+        Path dir = writeProgram();
+        // longer than the ring of parsed commands, so it wraps around
+        StringBuilder loop = new StringBuilder("function Long.f 1\n");
+        for (int i = 0; i < 5000; i++) {
+            loop.append("push constant ").append(i % 100).append("\npop local 0\npush local 0\neq\n");
+        }
+        loop.append("return\n");
+        Files.writeString(dir.resolve("Long.vm"), loop.toString());
+        String serial = translateDirectory(dir, Options.parse(new String[] { "--peephole" }));
+        String pipelined = translateDirectory(dir, Options.parse(new String[] { "--peephole", "--pipeline" }));
+        assertEquals(serial, pipelined);
+
+        // commands counted by the reader thread are merged into the file's record
+        Path report = Files.createTempFile("metrics", ".json");
+        Translator translator = new Translator(Options.parse(new String[] { "--pipeline", "--metrics=" + report }));
+        String outputFilename = dir + ".asm";
+        translator.translateDirectory(dir.toFile(), outputFilename);
+        ObjectName name = new ObjectName("vmtranslator:type=Translation");
+        assertEquals(22L + 20002L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Commands"));
+        translator.close();
+        new File(outputFilename).delete();
+        report.toFile().delete();
+
+        // teardown
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testMetricsMatchOutput() throws IOException, JMException {
+        Path dir = writeProgram();
+        Path report = Files.createTempFile("metrics", ".json");
+        File main = dir.resolve("Main.vm").toFile();
+        String outputFilename = dir.resolve("Main.asm").toString();
+        Translator translator = new Translator(Options.parse(new String[] { "--metrics=" + report }));
+        translator.translateFile(main, outputFilename);
+        // totals are exposed over JMX while the translator is open
+        Object commands = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("vmtranslator:type=Translation"), "Commands");
+        assertEquals(10L, commands);
+        translator.close();
+
+        String asm = Files.readString(Path.of(outputFilename));
+        long instructions = asm.lines()
+                .filter(line -> !line.isBlank() && !line.startsWith("//") && !line.startsWith("("))
+                .count();
+        String json = Files.readString(report);
+        Matcher total = Pattern.compile("\"total\": \\{.*\"asmChars\": (\\d+).*\"instructions\": \\{([^}]*)\\}",
+                Pattern.DOTALL).matcher(json);
+        assertTrue(total.find(), json);
+        assertEquals(asm.length(), Long.parseLong(total.group(1)));
+        assertTrue(json.contains("\"bytes\": " + asm.length() + ","), json);
+        long counted = 0;
+        for (String kind : total.group(2).split(", ")) {
+            counted += Long.parseLong(kind.substring(kind.indexOf(": ") + 2));
+        }
+        assertEquals(instructions, counted);
+        assertTrue(json.contains("\"C_ARITHMETIC\": 1,"), json);
+
+        // teardown
+        report.toFile().delete();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testMetricsRecordEachFileOnce() throws IOException, JMException {
+        Path dir = writeProgram();
+        Path report = Files.createTempFile("metrics", ".json");
+        // files are parsed ahead of translation by the whole program pass
+        Translator translator = new Translator(Options.parse(new String[] { "--prune-functions", "--metrics=" + report }));
+        String outputFilename = dir + ".asm";
+        translator.translateDirectory(dir.toFile(), outputFilename);
+        ObjectName name = new ObjectName("vmtranslator:type=Translation");
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FilesTranslated"));
+        // counted while parsing, ahead of code generation
+        assertEquals(22L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Commands"));
+        translator.close();
+
+        // teardown
+        new File(outputFilename).delete();
+        report.toFile().delete();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testMetricsCountBytesOfMachineCode() throws IOException, JMException {
+        Path dir = writeProgram();
+        Path report = Files.createTempFile("metrics", ".json");
+        File main = dir.resolve("Main.vm").toFile();
+        String outputFilename = dir.resolve("Main.hack").toString();
+        Translator translator = new Translator(Options.parse(new String[] { "--hack", "--metrics=" + report }));
+        translator.translateFile(main, outputFilename);
+        long size = Files.size(Path.of(outputFilename));
+        Object bytes = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("vmtranslator:type=Translation"), "BytesWritten");
+        assertEquals(size, bytes);
+        translator.close();
+        String json = Files.readString(report);
+        assertTrue(json.contains("\"bytes\": " + size + ","), json);
+
+        // teardown
+        report.toFile().delete();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testMetricsSkipTrailingComment() throws IOException {
+        Path dir = Files.createTempDirectory("trailing");
+        File source = dir.resolve("Main.vm").toFile();
+        Files.writeString(source.toPath(), "push constant 1\n// trailing\n");
+        Path report = Files.createTempFile("metrics", ".json");
+        String outputFilename = dir.resolve("Main.asm").toString();
+        Translator translator = new Translator(Options.parse(new String[] { "--metrics=" + report }));
+        translator.translateFile(source, outputFilename);
+        translator.close();
+        String json = Files.readString(report);
+        assertTrue(json.contains("\"commands\": {\"C_PUSH\": 1}"), json);
+        assertFalse(json.contains("C_EMPTY"), json);
+
+        // teardown
+        report.toFile().delete();
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    @Test
+    void testTailCallsKeepTheStackFlat() throws IOException {
+        Path dir = Files.createTempDirectory("tail");
+        // far deeper than the stack region holds frames for
+        Files.writeString(dir.resolve("Sys.vm"), """
+                function Sys.init 0
+                push constant 20000
+                push constant 0
+                call Sys.count 2
+                pop temp 0
+                label HALT
+                goto HALT
+                function Sys.count 0
+                push argument 0
+                if-goto MORE
+                push argument 1
+                return
+                label MORE
+                push argument 0
+                push constant 1
+                sub
+                push argument 1
+                push constant 2
+                add
+                call Sys.count 2
+                return
+                """);
+        for (String flag : new String[] { "--tail-calls", "--shared-calls" }) {
+            String asm = translateDirectory(dir, Options.parse(new String[] { "--tail-calls", flag }));
+            HackAssembler assembler = new HackAssembler(Writer.nullWriter());
+            assembler.write(asm);
+            assembler.close();
+            HackEmulator emulator = new HackEmulator(assembler.rom());
+            emulator.run(100_000_000);
+            assertTrue(emulator.halted(), flag);
+            assertEquals((short) 40000, emulator.ram()[5], flag);
+            // only the frames of Sys.init and one Sys.count were ever on the stack
+            assertEquals((short) 0, emulator.ram()[300], flag);
+        }
+
+        // teardown
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        dir.toFile().delete();
+    }
+}